@@ -0,0 +1,69 @@
+package com.knockfactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks knock detection on a synthetic 50 Hz trace of sensor noise with a double knock every
+ * five seconds. Throughput is reported in samples per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class KnockDetectorBenchmark {
+
+    private static final int SAMPLE_COUNT = 50 * 60;
+    private static final long SAMPLE_PERIOD_NANOS = 20 * 1000000L;
+
+    private final long[] mTimestamps = new long[SAMPLE_COUNT];
+    private final float[] mX = new float[SAMPLE_COUNT];
+    private final float[] mY = new float[SAMPLE_COUNT];
+    private final float[] mZ = new float[SAMPLE_COUNT];
+    private final KnockDetector mDetector = new KnockDetector();
+    private long mTimeOffset;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            mTimestamps[i] = i * SAMPLE_PERIOD_NANOS;
+            mX[i] = (float) random.nextGaussian() * 0.05f;
+            mY[i] = (float) random.nextGaussian() * 0.05f;
+            mZ[i] = 9.81f + (float) random.nextGaussian() * 0.05f;
+            int phase = i % 250;
+            if ((phase == 100) || (phase == 115)) {
+                mZ[i] += 4;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE_COUNT)
+    public int detect() {
+        int knocks = 0;
+        long offset = mTimeOffset;
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            if (mDetector.onSample(offset + mTimestamps[i], mX[i], mY[i], mZ[i])) {
+                knocks++;
+            }
+        }
+        // Keep the time moving forward across invocations.
+        mTimeOffset = offset + SAMPLE_COUNT * SAMPLE_PERIOD_NANOS;
+        return knocks;
+    }
+}
@@ -0,0 +1,68 @@
+package com.knockfactor;
+
+/**
+ * Fixed-capacity ring buffer of {@code float} values which overwrites the oldest value once full.
+ * <p/>
+ * <p>The storage is allocated once, at construction, so adding and reading values never allocates.
+ * <p/>
+ * <p>Thread-safety: not thread-safe.
+ */
+final class FloatRingBuffer {
+
+    private final float[] mValues;
+
+    /**
+     * Index at which the next value is stored.
+     */
+    private int mHead;
+    private int mSize;
+
+    FloatRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        mValues = new float[capacity];
+    }
+
+    /**
+     * Adds a value, dropping the oldest value if the buffer is full.
+     */
+    void add(float value) {
+        mValues[mHead] = value;
+        mHead = (mHead + 1 == mValues.length) ? 0 : mHead + 1;
+        if (mSize < mValues.length) {
+            mSize++;
+        }
+    }
+
+    /**
+     * Gets a value by its age.
+     *
+     * @param age {@code 0} for the most recently added value, {@code size() - 1} for the oldest
+     *            one.
+     */
+    float get(int age) {
+        if ((age < 0) || (age >= mSize)) {
+            throw new IndexOutOfBoundsException("age: " + age + ", size: " + mSize);
+        }
+        int index = mHead - 1 - age;
+        return mValues[(index < 0) ? index + mValues.length : index];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int capacity() {
+        return mValues.length;
+    }
+
+    boolean isFull() {
+        return mSize == mValues.length;
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+}
@@ -0,0 +1,138 @@
+package com.knockfactor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Streaming decoder of {@link FrameProtocol} frames. Frames may arrive split across reads or
+ * coalesced into one read; the decoder buffers partial frames and reports each complete one.
+ * <p/>
+ * <p>The decoder reuses a single buffer, which grows at most to the size of the largest frame.
+ * Payloads passed to the {@link Listener} are only valid for the duration of the callback.
+ * <p/>
+ * <p>Thread-safety: not thread-safe.
+ */
+class FrameDecoder {
+
+    /**
+     * Receiver of decoded frames.
+     */
+    interface Listener {
+        /**
+         * Invoked for every complete frame.
+         *
+         * @param payload array holding the payload, which must not be retained.
+         * @param offset  index of the first payload byte in {@code payload}.
+         * @param length  number of payload bytes.
+         */
+        void onFrame(int type, int requestId, byte[] payload, int offset, int length)
+                throws IOException;
+    }
+
+    private static final int INITIAL_BUFFER_LENGTH = 256;
+
+    private final Listener mListener;
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_LENGTH];
+
+    /**
+     * Index of the first byte not yet decoded.
+     */
+    private int mStart;
+
+    /**
+     * Index past the last byte received.
+     */
+    private int mEnd;
+
+    FrameDecoder(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Tells whether the first data received on a connection starts a frame rather than raw text,
+     * i.e., whether its first byte is the protocol version.
+     */
+    static boolean isFrameStart(byte[] data, int offset, int length) {
+        return (length > 0) && ((data[offset] & 0xFF) == FrameProtocol.VERSION);
+    }
+
+    /**
+     * Reads the next chunk of data available from the stream and decodes the frames it completes.
+     *
+     * @return number of bytes read or {@code -1} at the end of the stream.
+     * @throws ProtocolException if a frame is malformed.
+     */
+    int readFrom(InputStream in) throws IOException {
+        ensureSpace(1);
+        int bytes = in.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (bytes > 0) {
+            mEnd += bytes;
+            decodeFrames();
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes the frames completed by the provided data.
+     *
+     * @throws ProtocolException if a frame is malformed.
+     */
+    void feed(byte[] data, int offset, int length) throws IOException {
+        ensureSpace(length);
+        System.arraycopy(data, offset, mBuffer, mEnd, length);
+        mEnd += length;
+        decodeFrames();
+    }
+
+    private void decodeFrames() throws IOException {
+        while (mEnd - mStart >= FrameProtocol.HEADER_LENGTH) {
+            int version = mBuffer[mStart] & 0xFF;
+            if (version != FrameProtocol.VERSION) {
+                throw new ProtocolException("Unsupported protocol version: " + version);
+            }
+            int payloadLength = ((mBuffer[mStart + 6] & 0xFF) << 8) | (mBuffer[mStart + 7] & 0xFF);
+            if (payloadLength > FrameProtocol.MAX_PAYLOAD_LENGTH) {
+                throw new ProtocolException("Frame too long: " + payloadLength);
+            }
+            int frameLength = FrameProtocol.HEADER_LENGTH + payloadLength;
+            if (mEnd - mStart < frameLength) {
+                // Wait for the rest of the frame.
+                ensureSpace(frameLength - (mEnd - mStart));
+                return;
+            }
+
+            int type = mBuffer[mStart + 1] & 0xFF;
+            int requestId = ((mBuffer[mStart + 2] & 0xFF) << 24)
+                    | ((mBuffer[mStart + 3] & 0xFF) << 16)
+                    | ((mBuffer[mStart + 4] & 0xFF) << 8)
+                    | (mBuffer[mStart + 5] & 0xFF);
+            int payloadOffset = mStart + FrameProtocol.HEADER_LENGTH;
+            mStart += frameLength;
+            mListener.onFrame(type, requestId, mBuffer, payloadOffset, payloadLength);
+        }
+        if (mStart == mEnd) {
+            mStart = 0;
+            mEnd = 0;
+        }
+    }
+
+    /**
+     * Makes room for at least the provided number of bytes after {@link #mEnd}, discarding the
+     * decoded bytes and growing the buffer if necessary.
+     */
+    private void ensureSpace(int bytes) {
+        if (mBuffer.length - mEnd >= bytes) {
+            return;
+        }
+        int pending = mEnd - mStart;
+        byte[] buffer = mBuffer;
+        if (pending + bytes > buffer.length) {
+            buffer = new byte[Math.max(2 * buffer.length, pending + bytes)];
+        }
+        System.arraycopy(mBuffer, mStart, buffer, 0, pending);
+        mBuffer = buffer;
+        mStart = 0;
+        mEnd = pending;
+    }
+}
@@ -0,0 +1,55 @@
+package com.knockfactor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Encoder of {@link FrameProtocol} frames. Each frame is written to the stream with a single
+ * {@link OutputStream#write(byte[], int, int)} call from a reused buffer.
+ * <p/>
+ * <p>Thread-safety: not thread-safe.
+ */
+class FrameEncoder {
+
+    private final byte[] mBuffer =
+            new byte[FrameProtocol.HEADER_LENGTH + FrameProtocol.MAX_PAYLOAD_LENGTH];
+
+    /**
+     * Writes a frame with a textual payload.
+     *
+     * @param payload payload or {@code null} for none.
+     */
+    void write(OutputStream out, int type, int requestId, String payload) throws IOException {
+        byte[] bytes = (payload != null) ? toUtf8(payload) : null;
+        write(out, type, requestId, bytes, 0, (bytes != null) ? bytes.length : 0);
+    }
+
+    void write(OutputStream out, int type, int requestId, byte[] payload, int offset, int length)
+            throws IOException {
+        if (length > FrameProtocol.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload too long: " + length);
+        }
+        mBuffer[0] = (byte) FrameProtocol.VERSION;
+        mBuffer[1] = (byte) type;
+        mBuffer[2] = (byte) (requestId >>> 24);
+        mBuffer[3] = (byte) (requestId >>> 16);
+        mBuffer[4] = (byte) (requestId >>> 8);
+        mBuffer[5] = (byte) requestId;
+        mBuffer[6] = (byte) (length >>> 8);
+        mBuffer[7] = (byte) length;
+        if (length > 0) {
+            System.arraycopy(payload, offset, mBuffer, FrameProtocol.HEADER_LENGTH, length);
+        }
+        out.write(mBuffer, 0, FrameProtocol.HEADER_LENGTH + length);
+        out.flush();
+    }
+
+    private static byte[] toUtf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 encoding not supported", e);
+        }
+    }
+}
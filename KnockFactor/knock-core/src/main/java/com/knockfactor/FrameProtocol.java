@@ -0,0 +1,69 @@
+package com.knockfactor;
+
+/**
+ * Constants of the framed protocol spoken over the RFCOMM connection with the desktop.
+ * <p/>
+ * <p>Every message is a frame made of an {@value #HEADER_LENGTH}-byte header followed by the
+ * payload. The header holds, in network byte order:
+ * <ul>
+ * <li>protocol version (1 byte), currently {@value #VERSION},</li>
+ * <li>message type (1 byte), one of the {@code TYPE_} constants,</li>
+ * <li>request id (4 bytes), chosen by the requester and echoed in the response, so that several
+ * requests may be in flight on the same connection,</li>
+ * <li>payload length (2 bytes), at most {@value #MAX_PAYLOAD_LENGTH}.</li>
+ * </ul>
+ * Textual payloads are UTF-8 encoded. Responses are sent in the order of the requests.
+ * <p/>
+ * <p>Desktops which predate frames exchange raw UTF-8 text instead: the desktop sends an account
+ * name or hostname and the phone answers with the bare code (or nothing if no account matches),
+ * while knocks are sent as {@value #LEGACY_KNOCK}. The phone speaks raw text until it receives a
+ * frame, which it tells apart from text by the version byte (a control character, which never
+ * starts a name). A desktop thus opts into frames by sending {@link #TYPE_HELLO} right after
+ * connecting, and must still accept a raw knock until the phone's {@link #TYPE_HELLO} arrives.
+ */
+final class FrameProtocol {
+
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 8;
+    static final int MAX_PAYLOAD_LENGTH = 4096;
+
+    /**
+     * Sent periodically by either side to detect dead links. No payload. Ignored by the receiver.
+     */
+    static final int TYPE_KEEP_ALIVE = 0;
+
+    /**
+     * Sent by the phone when the user knocks. No payload.
+     */
+    static final int TYPE_KNOCK = 1;
+
+    /**
+     * Sent by the desktop to ask for the code of an account. Payload: account name or hostname.
+     */
+    static final int TYPE_CODE_REQUEST = 2;
+
+    /**
+     * Sent by the phone in response to {@link #TYPE_CODE_REQUEST}. Payload: the code.
+     */
+    static final int TYPE_CODE_RESPONSE = 3;
+
+    /**
+     * Sent by the phone in response to {@link #TYPE_CODE_REQUEST} when no account matches.
+     * No payload.
+     */
+    static final int TYPE_NOT_FOUND = 4;
+
+    /**
+     * Sent by the desktop to switch the connection to frames, and echoed by the phone once it has.
+     * No payload.
+     */
+    static final int TYPE_HELLO = 5;
+
+    /**
+     * Raw text of a knock sent to desktops which do not speak frames.
+     */
+    static final String LEGACY_KNOCK = "knocked";
+
+    private FrameProtocol() {
+    }
+}
@@ -0,0 +1,71 @@
+package com.knockfactor;
+
+/**
+ * Removes gravity from three-axis accelerometer samples. Gravity is estimated per axis with a
+ * low-pass filter whose coefficient is derived from the time between samples, and subtracted from
+ * each sample.
+ * <p/>
+ * <p>Thread-safety: not thread-safe.
+ */
+final class GravityFilter {
+
+    private final float mTimeConstantNanos;
+    private final float[] mGravity = new float[3];
+    private boolean mHasPreviousSample;
+    private long mPreviousTimestampNanos;
+
+    /**
+     * @param timeConstantNanos time constant (nanoseconds) of the gravity estimate.
+     */
+    GravityFilter(long timeConstantNanos) {
+        if (timeConstantNanos <= 0) {
+            throw new IllegalArgumentException("time constant: " + timeConstantNanos);
+        }
+        mTimeConstantNanos = timeConstantNanos;
+    }
+
+    /**
+     * Processes the next sample.
+     *
+     * @param timestampNanos time (nanoseconds) at which the sample was taken.
+     * @param x              X-axis acceleration (m/s^2).
+     * @param y              Y-axis acceleration (m/s^2).
+     * @param z              Z-axis acceleration (m/s^2).
+     * @param linear         receives the acceleration without gravity in its first three elements.
+     */
+    void process(long timestampNanos, float x, float y, float z, float[] linear) {
+        if (!mHasPreviousSample) {
+            // Assume the device is at rest when the first sample is taken.
+            mGravity[0] = x;
+            mGravity[1] = y;
+            mGravity[2] = z;
+            mHasPreviousSample = true;
+        } else {
+            long dt = Math.max(1, timestampNanos - mPreviousTimestampNanos);
+            float alpha = dt / (mTimeConstantNanos + dt);
+            mGravity[0] += alpha * (x - mGravity[0]);
+            mGravity[1] += alpha * (y - mGravity[1]);
+            mGravity[2] += alpha * (z - mGravity[2]);
+        }
+        mPreviousTimestampNanos = timestampNanos;
+        linear[0] = x - mGravity[0];
+        linear[1] = y - mGravity[1];
+        linear[2] = z - mGravity[2];
+    }
+
+    /**
+     * Gets the current estimate of gravity (m/s^2) along an axis.
+     *
+     * @param axis {@code 0} for X, {@code 1} for Y, {@code 2} for Z.
+     */
+    float getGravity(int axis) {
+        return mGravity[axis];
+    }
+
+    /**
+     * Forgets all samples seen so far.
+     */
+    void reset() {
+        mHasPreviousSample = false;
+    }
+}
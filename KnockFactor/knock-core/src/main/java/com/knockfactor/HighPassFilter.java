@@ -0,0 +1,54 @@
+package com.knockfactor;
+
+/**
+ * First-order high-pass filter, which removes the slowly changing part of a signal (e.g., the
+ * acceleration of walking or of the phone being turned) and keeps sudden changes such as knocks.
+ * <p/>
+ * <p>The filter coefficient is derived from the time between samples, so the cutoff frequency does
+ * not depend on the sampling rate or on samples being delivered in batches.
+ * <p/>
+ * <p>Thread-safety: not thread-safe.
+ */
+final class HighPassFilter implements SignalStage {
+
+    private final float mTimeConstantNanos;
+
+    private boolean mHasPreviousSample;
+    private long mPreviousTimestampNanos;
+    private float mPreviousInput;
+    private float mPreviousOutput;
+
+    /**
+     * @param timeConstantNanos time constant (nanoseconds) of the filter. Changes slower than this
+     *                          are attenuated.
+     */
+    HighPassFilter(long timeConstantNanos) {
+        if (timeConstantNanos <= 0) {
+            throw new IllegalArgumentException("time constant: " + timeConstantNanos);
+        }
+        mTimeConstantNanos = timeConstantNanos;
+    }
+
+    @Override
+    public float process(long timestampNanos, float value) {
+        float output;
+        if (!mHasPreviousSample) {
+            // Nothing is known about the signal before: assume it has been constant.
+            output = 0;
+            mHasPreviousSample = true;
+        } else {
+            long dt = Math.max(1, timestampNanos - mPreviousTimestampNanos);
+            float alpha = mTimeConstantNanos / (mTimeConstantNanos + dt);
+            output = alpha * (mPreviousOutput + value - mPreviousInput);
+        }
+        mPreviousTimestampNanos = timestampNanos;
+        mPreviousInput = value;
+        mPreviousOutput = output;
+        return output;
+    }
+
+    @Override
+    public void reset() {
+        mHasPreviousSample = false;
+    }
+}
@@ -0,0 +1,89 @@
+package com.knockfactor;
+
+/**
+ * Detects double knocks from three-axis accelerometer samples using only the samples' timestamps.
+ * <p/>
+ * <p>A knock is an impact peak picked by a {@link SignalPipeline} from the magnitude of the
+ * acceleration without gravity. A double knock is a second knock which follows the first one by at
+ * least {@code minGap} and at most {@code maxGap}. A knock arriving later than that starts a new
+ * double knock.
+ * <p/>
+ * <p>The detector does not allocate or depend on a {@code android.os.Looper}, so it can be fed
+ * from any thread at any sampling rate.
+ * <p/>
+ * <p>Thread-safety: not thread-safe; samples must be fed from a single thread.
+ */
+class KnockDetector {
+
+    static final long DEFAULT_MIN_GAP_NANOS = 100 * 1000000L;
+    static final long DEFAULT_MAX_GAP_NANOS = 2000 * 1000000L;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_FIRST_KNOCK = 1;
+
+    private final SignalPipeline mPipeline;
+    private final long mMinGapNanos;
+    private final long mMaxGapNanos;
+
+    private int mState = STATE_IDLE;
+    private long mFirstKnockTimestamp;
+
+    KnockDetector() {
+        this(SignalPipeline.createDefault(), DEFAULT_MIN_GAP_NANOS, DEFAULT_MAX_GAP_NANOS);
+    }
+
+    /**
+     * @param pipeline    pipeline picking the knocks from the samples.
+     * @param minGapNanos shortest time between the two knocks of a double knock.
+     * @param maxGapNanos longest time between the two knocks of a double knock.
+     */
+    KnockDetector(SignalPipeline pipeline, long minGapNanos, long maxGapNanos) {
+        if ((minGapNanos < 0) || (minGapNanos > maxGapNanos)) {
+            throw new IllegalArgumentException("gap: [" + minGapNanos + ", " + maxGapNanos + "]");
+        }
+        mPipeline = pipeline;
+        mMinGapNanos = minGapNanos;
+        mMaxGapNanos = maxGapNanos;
+    }
+
+    /**
+     * Processes the next sample.
+     *
+     * @param timestampNanos time (nanoseconds) at which the sample was taken, as in
+     *                       {@code android.hardware.SensorEvent.timestamp}.
+     * @param x              X-axis acceleration (m/s^2).
+     * @param y              Y-axis acceleration (m/s^2).
+     * @param z              Z-axis acceleration (m/s^2).
+     * @return {@code true} if the sample completes a double knock.
+     */
+    boolean onSample(long timestampNanos, float x, float y, float z) {
+        if (!mPipeline.process(timestampNanos, x, y, z)) {
+            return false;
+        }
+        long knockTimestamp = mPipeline.getPeakTimestampNanos();
+
+        if (mState == STATE_FIRST_KNOCK) {
+            long gap = knockTimestamp - mFirstKnockTimestamp;
+            if (gap < mMinGapNanos) {
+                // Still the first knock.
+                return false;
+            }
+            if (gap <= mMaxGapNanos) {
+                mState = STATE_IDLE;
+                return true;
+            }
+            // Too late for a double knock -- this is the first knock of a new one.
+        }
+        mState = STATE_FIRST_KNOCK;
+        mFirstKnockTimestamp = knockTimestamp;
+        return false;
+    }
+
+    /**
+     * Forgets all samples and knocks seen so far.
+     */
+    void reset() {
+        mState = STATE_IDLE;
+        mPipeline.reset();
+    }
+}
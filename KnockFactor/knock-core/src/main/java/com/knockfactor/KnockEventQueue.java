@@ -0,0 +1,80 @@
+package com.knockfactor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free, bounded queue of knock timestamps handed from the thread detecting knocks to the
+ * thread consuming them.
+ * <p/>
+ * <p>The storage is allocated once, at construction, so neither side allocates or blocks: a full
+ * queue rejects the knock instead of waiting for the consumer. Each side only writes its own index
+ * and publishes it with an ordered store, which is all a single producer and a single consumer
+ * need to see each other's progress.
+ * <p/>
+ * <p>Thread-safety: {@link #offer(long)} may be invoked from one thread and {@link #poll()} from
+ * one other thread at a time.
+ */
+final class KnockEventQueue {
+
+    /**
+     * Returned by {@link #poll()} when the queue is empty.
+     */
+    static final long EMPTY = Long.MIN_VALUE;
+
+    private final long[] mTimestamps;
+    private final int mMask;
+
+    /**
+     * Number of knocks taken so far. Written by the consumer only.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * Number of knocks added so far. Written by the producer only.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * @param capacity largest number of knocks waiting to be consumed, a power of two.
+     */
+    KnockEventQueue(int capacity) {
+        if ((capacity <= 0) || ((capacity & (capacity - 1)) != 0)) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        mTimestamps = new long[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Adds a knock. Invoked by the producer only.
+     *
+     * @param timestampNanos time (nanoseconds) of the knock, other than {@link #EMPTY}.
+     * @return {@code false} if the queue is full and the knock was dropped.
+     */
+    boolean offer(long timestampNanos) {
+        long tail = mTail.get();
+        if (tail - mHead.get() == mTimestamps.length) {
+            return false;
+        }
+        mTimestamps[(int) tail & mMask] = timestampNanos;
+        // Publishes the slot written above to the consumer.
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Takes the oldest knock. Invoked by the consumer only.
+     *
+     * @return time (nanoseconds) of the knock or {@link #EMPTY} if there is none.
+     */
+    long poll() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return EMPTY;
+        }
+        long timestampNanos = mTimestamps[(int) head & mMask];
+        // Hands the slot read above back to the producer.
+        mHead.lazySet(head + 1);
+        return timestampNanos;
+    }
+}
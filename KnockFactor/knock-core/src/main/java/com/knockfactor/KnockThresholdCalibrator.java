@@ -0,0 +1,156 @@
+package com.knockfactor;
+
+/**
+ * Adapts the knock amplitude thresholds of a {@link SignalPipeline} to the noise floor of the
+ * device's accelerometer and to how the phone is carried.
+ * <p/>
+ * <p>The noise floor is tracked with {@link RunningStatistics} of the filtered signal, separately
+ * for the phone lying flat (e.g., on a desk) and for any other position (e.g., in a pocket or a
+ * hand, where footsteps add to the noise). Samples reaching the current knock threshold are left
+ * out, so that knocks do not raise the noise floor. The smallest knock amplitude is set a fixed
+ * number of standard deviations above the mean noise, within bounds. The largest one, which rejects
+ * drops and bumps, is only raised from its default to keep the default ratio to the smallest one,
+ * and capped by the range of the accelerometer.
+ * <p/>
+ * <p>Until enough samples have been seen in a position, the default thresholds are used. The
+ * learned statistics can be saved and {@link #restore(int, long, double, double) restored}, so
+ * that they are kept across restarts.
+ * <p/>
+ * <p>Thread-safety: not thread-safe.
+ */
+final class KnockThresholdCalibrator {
+
+    static final int POSITION_FLAT = 0;
+    static final int POSITION_OTHER = 1;
+    static final int POSITION_COUNT = 2;
+
+    /**
+     * Number of noise samples (about ten seconds at 50 Hz) needed before thresholds are adapted.
+     */
+    static final int WARM_UP_COUNT = 500;
+
+    /**
+     * Weight of each noise sample once warmed up: the noise floor follows changes over about a
+     * minute at 50 Hz.
+     */
+    static final double ALPHA = 1.0 / 3000;
+
+    /**
+     * Number of standard deviations above the mean noise at which knocks start.
+     */
+    static final float NOISE_MULTIPLIER = 8;
+
+    static final float LOWEST_MIN_AMPLITUDE = 1;
+    static final float HIGHEST_MIN_AMPLITUDE = 5;
+
+    /**
+     * Number of samples between threshold updates, so thresholds are not recomputed per sample.
+     */
+    static final int UPDATE_PERIOD = 50;
+
+    /**
+     * Smallest cosine squared of the angle between gravity and the Z axis of a phone lying flat
+     * (about 15 degrees).
+     */
+    private static final float FLAT_MIN_COS_SQUARED = 0.933f;
+
+    private final RunningStatistics[] mStatistics = new RunningStatistics[POSITION_COUNT];
+    private final float mMaxRange;
+
+    private int mPosition = POSITION_OTHER;
+    private int mSamplesSinceUpdate;
+    private float mMinAmplitude = SignalPipeline.DEFAULT_MIN_AMPLITUDE;
+    private float mMaxAmplitude = SignalPipeline.DEFAULT_MAX_AMPLITUDE;
+
+    /**
+     * @param maxRange maximum range (m/s^2) of the accelerometer or {@code 0} if unknown.
+     */
+    KnockThresholdCalibrator(float maxRange) {
+        mMaxRange = maxRange;
+        for (int i = 0; i < POSITION_COUNT; i++) {
+            mStatistics[i] = new RunningStatistics(WARM_UP_COUNT, ALPHA);
+        }
+    }
+
+    /**
+     * Gets the carry position indicated by the direction of gravity.
+     *
+     * @return {@link #POSITION_FLAT} or {@link #POSITION_OTHER}.
+     */
+    static int getPosition(float gravityX, float gravityY, float gravityZ) {
+        float squared = gravityX * gravityX + gravityY * gravityY + gravityZ * gravityZ;
+        return (gravityZ * gravityZ >= FLAT_MIN_COS_SQUARED * squared)
+                ? POSITION_FLAT
+                : POSITION_OTHER;
+    }
+
+    /**
+     * Processes the next sample of the filtered signal.
+     *
+     * @param value    value of the signal which knocks are picked from.
+     * @param position carry position of the phone, see {@link #getPosition(float, float, float)}.
+     * @return {@code true} if the thresholds changed.
+     */
+    boolean onSample(float value, int position) {
+        if (value < mMinAmplitude) {
+            mStatistics[position].add(value);
+        }
+        if ((position != mPosition) || (++mSamplesSinceUpdate >= UPDATE_PERIOD)) {
+            mPosition = position;
+            mSamplesSinceUpdate = 0;
+            return updateThresholds();
+        }
+        return false;
+    }
+
+    float getMinAmplitude() {
+        return mMinAmplitude;
+    }
+
+    float getMaxAmplitude() {
+        return mMaxAmplitude;
+    }
+
+    /**
+     * Gets the noise statistics learned in the position, for saving them.
+     */
+    RunningStatistics getStatistics(int position) {
+        return mStatistics[position];
+    }
+
+    /**
+     * Restores the noise statistics of the position saved earlier.
+     */
+    void restore(int position, long count, double mean, double variance) {
+        mStatistics[position].restore(count, mean, variance);
+        updateThresholds();
+    }
+
+    private boolean updateThresholds() {
+        RunningStatistics statistics = mStatistics[mPosition];
+        float minAmplitude;
+        float maxAmplitude;
+        if (!statistics.isWarmedUp()) {
+            minAmplitude = SignalPipeline.DEFAULT_MIN_AMPLITUDE;
+            maxAmplitude = SignalPipeline.DEFAULT_MAX_AMPLITUDE;
+        } else {
+            minAmplitude = (float) (statistics.getMean()
+                    + NOISE_MULTIPLIER * statistics.getStandardDeviation());
+            minAmplitude = Math.min(HIGHEST_MIN_AMPLITUDE,
+                    Math.max(LOWEST_MIN_AMPLITUDE, minAmplitude));
+            maxAmplitude = Math.max(SignalPipeline.DEFAULT_MAX_AMPLITUDE,
+                    minAmplitude * (SignalPipeline.DEFAULT_MAX_AMPLITUDE
+                            / SignalPipeline.DEFAULT_MIN_AMPLITUDE));
+            if (mMaxRange > 0) {
+                // Larger values are clipped by the sensor and cannot be told apart.
+                maxAmplitude = Math.max(Math.min(maxAmplitude, mMaxRange), minAmplitude * 1.5f);
+            }
+        }
+        if ((minAmplitude == mMinAmplitude) && (maxAmplitude == mMaxAmplitude)) {
+            return false;
+        }
+        mMinAmplitude = minAmplitude;
+        mMaxAmplitude = maxAmplitude;
+        return true;
+    }
+}
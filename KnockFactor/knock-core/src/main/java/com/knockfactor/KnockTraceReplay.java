@@ -0,0 +1,224 @@
+package com.knockfactor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * Replays recorded {@link SensorTrace}s through a {@link KnockDetector} at full speed and scores
+ * the detected double knocks against the labeled ones, so that detection changes can be evaluated
+ * off-device against a corpus of traces.
+ * <p/>
+ * <p>A detection matches the earliest unmatched label at most the tolerance away from it. The
+ * latency of a match is measured in sample time, from the label to the sample completing the
+ * detection.
+ * <p/>
+ * <p>Usage: {@code KnockTraceReplay [--min-amplitude=<m/s^2>] [--max-amplitude=<m/s^2>]
+ * [--calibrate] [--tolerance-ms=<ms>] <trace>...}, where {@code --calibrate} adapts the
+ * amplitudes with a {@link KnockThresholdCalibrator} (starting from scratch for each trace)
+ * instead of using fixed ones.
+ */
+public final class KnockTraceReplay {
+
+    static final long DEFAULT_TOLERANCE_NANOS = 500 * 1000000L;
+
+    private KnockTraceReplay() {
+    }
+
+    /**
+     * Outcome of replaying one or more traces.
+     */
+    static final class Result {
+        private int mSampleCount;
+        private long mElapsedNanos;
+        private int mTruePositives;
+        private int mFalsePositives;
+        private int mFalseNegatives;
+        private long mTotalLatencyNanos;
+        private long mMaxLatencyNanos;
+
+        int getTruePositives() {
+            return mTruePositives;
+        }
+
+        int getFalsePositives() {
+            return mFalsePositives;
+        }
+
+        int getFalseNegatives() {
+            return mFalseNegatives;
+        }
+
+        /**
+         * Gets the fraction of detections which match a labeled knock, or {@code 1} if there were
+         * no detections.
+         */
+        double getPrecision() {
+            int detections = mTruePositives + mFalsePositives;
+            return (detections == 0) ? 1 : ((double) mTruePositives) / detections;
+        }
+
+        /**
+         * Gets the fraction of labeled knocks which were detected, or {@code 1} if there were no
+         * labels.
+         */
+        double getRecall() {
+            int labels = mTruePositives + mFalseNegatives;
+            return (labels == 0) ? 1 : ((double) mTruePositives) / labels;
+        }
+
+        /**
+         * Gets the mean detection latency (nanoseconds, sample time) of the matched detections.
+         */
+        long getMeanLatencyNanos() {
+            return (mTruePositives == 0) ? 0 : mTotalLatencyNanos / mTruePositives;
+        }
+
+        long getMaxLatencyNanos() {
+            return mMaxLatencyNanos;
+        }
+
+        /**
+         * Gets the number of samples processed per second of wall-clock time.
+         */
+        double getSamplesPerSecond() {
+            return (mElapsedNanos == 0) ? 0 : mSampleCount * 1e9 / mElapsedNanos;
+        }
+
+        void add(Result other) {
+            mSampleCount += other.mSampleCount;
+            mElapsedNanos += other.mElapsedNanos;
+            mTruePositives += other.mTruePositives;
+            mFalsePositives += other.mFalsePositives;
+            mFalseNegatives += other.mFalseNegatives;
+            mTotalLatencyNanos += other.mTotalLatencyNanos;
+            mMaxLatencyNanos = Math.max(mMaxLatencyNanos, other.mMaxLatencyNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "precision=%.3f recall=%.3f (tp=%d fp=%d fn=%d) latency mean=%dms max=%dms"
+                            + " samples=%d %.0f samples/s",
+                    getPrecision(), getRecall(), mTruePositives, mFalsePositives, mFalseNegatives,
+                    getMeanLatencyNanos() / 1000000, mMaxLatencyNanos / 1000000, mSampleCount,
+                    getSamplesPerSecond());
+        }
+    }
+
+    /**
+     * Feeds all samples of the trace into the detector and scores its detections.
+     *
+     * @param toleranceNanos largest time between a labeled knock and a detection matching it.
+     */
+    static Result replay(SensorTrace trace, KnockDetector detector, long toleranceNanos) {
+        int sampleCount = trace.getSampleCount();
+        // Sample indices of the detections. At most every other sample can complete a double knock.
+        int[] detections = new int[(sampleCount + 1) / 2];
+        int detectionCount = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < sampleCount; i++) {
+            if (detector.onSample(trace.getTimestampNanos(i), trace.getX(i), trace.getY(i),
+                    trace.getZ(i))) {
+                detections[detectionCount++] = i;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Result result = new Result();
+        result.mSampleCount = sampleCount;
+        result.mElapsedNanos = elapsed;
+        boolean[] matched = new boolean[trace.getLabelCount()];
+        for (int i = 0; i < detectionCount; i++) {
+            long detectionTimestamp = trace.getTimestampNanos(detections[i]);
+            int label = findLabel(trace, matched, detectionTimestamp, toleranceNanos);
+            if (label == -1) {
+                result.mFalsePositives++;
+                continue;
+            }
+            matched[label] = true;
+            result.mTruePositives++;
+            long latency = Math.max(0, detectionTimestamp - trace.getLabelTimestampNanos(label));
+            result.mTotalLatencyNanos += latency;
+            result.mMaxLatencyNanos = Math.max(result.mMaxLatencyNanos, latency);
+        }
+        for (boolean labelMatched : matched) {
+            if (!labelMatched) {
+                result.mFalseNegatives++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the earliest unmatched label within the tolerance of the detection.
+     *
+     * @return index of the label or {@code -1} if none.
+     */
+    private static int findLabel(SensorTrace trace, boolean[] matched, long detectionTimestamp,
+                                 long toleranceNanos) {
+        for (int i = 0, count = trace.getLabelCount(); i < count; i++) {
+            long labelTimestamp = trace.getLabelTimestampNanos(i);
+            if (labelTimestamp > detectionTimestamp + toleranceNanos) {
+                break;
+            }
+            if ((!matched[i]) && (detectionTimestamp - labelTimestamp <= toleranceNanos)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        float minAmplitude = SignalPipeline.DEFAULT_MIN_AMPLITUDE;
+        float maxAmplitude = SignalPipeline.DEFAULT_MAX_AMPLITUDE;
+        long toleranceNanos = DEFAULT_TOLERANCE_NANOS;
+        boolean calibrate = false;
+        int firstTrace = 0;
+        for (; (firstTrace < args.length) && (args[firstTrace].startsWith("--")); firstTrace++) {
+            String arg = args[firstTrace];
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--min-amplitude=")) {
+                minAmplitude = Float.parseFloat(value);
+            } else if (arg.startsWith("--max-amplitude=")) {
+                maxAmplitude = Float.parseFloat(value);
+            } else if (arg.equals("--calibrate")) {
+                calibrate = true;
+            } else if (arg.startsWith("--tolerance-ms=")) {
+                toleranceNanos = Long.parseLong(value) * 1000000L;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (firstTrace == args.length) {
+            System.err.println("Usage: KnockTraceReplay [--min-amplitude=<m/s^2>]"
+                    + " [--max-amplitude=<m/s^2>] [--calibrate] [--tolerance-ms=<ms>]"
+                    + " <trace>...");
+            System.exit(2);
+        }
+
+        Result total = new Result();
+        for (int i = firstTrace; i < args.length; i++) {
+            SensorTrace trace;
+            Reader in = new InputStreamReader(new FileInputStream(args[i]), "UTF-8");
+            try {
+                trace = SensorTrace.read(in);
+            } finally {
+                in.close();
+            }
+            // A fresh detector per trace: traces are unrelated recordings.
+            SignalPipeline pipeline = calibrate
+                    ? SignalPipeline.createCalibrated(new KnockThresholdCalibrator(0))
+                    : SignalPipeline.create(minAmplitude, maxAmplitude);
+            KnockDetector detector = new KnockDetector(pipeline,
+                    KnockDetector.DEFAULT_MIN_GAP_NANOS, KnockDetector.DEFAULT_MAX_GAP_NANOS);
+            Result result = replay(trace, detector, toleranceNanos);
+            total.add(result);
+            System.out.println(args[i] + ": " + result);
+        }
+        System.out.println("total: " + total);
+    }
+}
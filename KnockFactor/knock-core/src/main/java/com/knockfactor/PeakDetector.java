@@ -0,0 +1,132 @@
+package com.knockfactor;
+
+/**
+ * Picks peaks from a scalar signal. A peak is a sample which is the maximum of the window of
+ * {@code radius} samples on either side of it, whose value falls within
+ * {@code [minAmplitude, maxAmplitude]}, and which follows the previous peak by at least the
+ * refractory period (so that the ringing after one impact is not picked as further peaks).
+ * <p/>
+ * <p>Peaks are reported {@code radius} samples after they were taken, once the samples following
+ * them are known. The window is kept in preallocated ring buffers, so no samples are allocated.
+ * <p/>
+ * <p>Thread-safety: not thread-safe.
+ */
+final class PeakDetector {
+
+    private final int mRadius;
+    private float mMinAmplitude;
+    private float mMaxAmplitude;
+    private final long mRefractoryNanos;
+
+    private final FloatRingBuffer mValues;
+
+    /**
+     * Timestamps of the samples in {@link #mValues}, stored at the same positions.
+     */
+    private final long[] mTimestamps;
+    private int mTimestampHead;
+
+    private boolean mHasPeak;
+    private long mPeakTimestampNanos;
+    private float mPeakAmplitude;
+
+    /**
+     * @param radius          number of samples on either side of a peak which must not exceed it.
+     * @param minAmplitude    smallest value of a peak.
+     * @param maxAmplitude    largest value of a peak. Larger values (e.g., the phone being
+     *                        dropped) are ignored.
+     * @param refractoryNanos shortest time (nanoseconds) between two peaks.
+     */
+    PeakDetector(int radius, float minAmplitude, float maxAmplitude, long refractoryNanos) {
+        if (radius <= 0) {
+            throw new IllegalArgumentException("radius: " + radius);
+        }
+        if (refractoryNanos < 0) {
+            throw new IllegalArgumentException("refractory period: " + refractoryNanos);
+        }
+        mRadius = radius;
+        setAmplitudeRange(minAmplitude, maxAmplitude);
+        mRefractoryNanos = refractoryNanos;
+        mValues = new FloatRingBuffer(2 * radius + 1);
+        mTimestamps = new long[2 * radius + 1];
+    }
+
+    /**
+     * Sets the range of values of a peak, e.g., as adapted by a {@link KnockThresholdCalibrator}.
+     */
+    void setAmplitudeRange(float minAmplitude, float maxAmplitude) {
+        if (!(minAmplitude < maxAmplitude)) {
+            throw new IllegalArgumentException(
+                    "amplitude: [" + minAmplitude + ", " + maxAmplitude + "]");
+        }
+        mMinAmplitude = minAmplitude;
+        mMaxAmplitude = maxAmplitude;
+    }
+
+    /**
+     * Processes the next sample.
+     *
+     * @return {@code true} if the sample completes the window of a peak, whose time and amplitude
+     *         are then available from {@link #getPeakTimestampNanos()} and
+     *         {@link #getPeakAmplitude()}.
+     */
+    boolean process(long timestampNanos, float value) {
+        mValues.add(value);
+        mTimestamps[mTimestampHead] = timestampNanos;
+        mTimestampHead = (mTimestampHead + 1 == mTimestamps.length) ? 0 : mTimestampHead + 1;
+        if (!mValues.isFull()) {
+            return false;
+        }
+
+        float candidate = mValues.get(mRadius);
+        if ((candidate < mMinAmplitude) || (candidate > mMaxAmplitude)) {
+            return false;
+        }
+        for (int age = 0; age < mRadius; age++) {
+            // Of a plateau, only the earliest sample is a peak.
+            if (mValues.get(age) > candidate) {
+                return false;
+            }
+        }
+        for (int age = mRadius + 1; age < mValues.size(); age++) {
+            if (mValues.get(age) >= candidate) {
+                return false;
+            }
+        }
+
+        // The oldest sample is at the head of the full ring, the candidate follows it by radius.
+        int index = mTimestampHead + mRadius;
+        long candidateTimestamp =
+                mTimestamps[(index >= mTimestamps.length) ? index - mTimestamps.length : index];
+        if ((mHasPeak) && (candidateTimestamp - mPeakTimestampNanos < mRefractoryNanos)) {
+            return false;
+        }
+        mHasPeak = true;
+        mPeakTimestampNanos = candidateTimestamp;
+        mPeakAmplitude = candidate;
+        return true;
+    }
+
+    /**
+     * Gets the time (nanoseconds) at which the most recent peak was taken.
+     */
+    long getPeakTimestampNanos() {
+        return mPeakTimestampNanos;
+    }
+
+    /**
+     * Gets the value of the most recent peak.
+     */
+    float getPeakAmplitude() {
+        return mPeakAmplitude;
+    }
+
+    /**
+     * Forgets all samples and peaks seen so far.
+     */
+    void reset() {
+        mValues.clear();
+        mTimestampHead = 0;
+        mHasPeak = false;
+    }
+}
@@ -0,0 +1,107 @@
+package com.knockfactor;
+
+/**
+ * Running mean and variance of a signal in constant space.
+ * <p/>
+ * <p>The first {@code warmUpCount} values are weighted equally using Welford's algorithm, which
+ * gives an accurate estimate quickly. Later values update an exponentially weighted moving average
+ * (EWMA) of the mean and variance instead, so that the estimate follows slow changes of the
+ * signal, e.g., the phone moving from a desk into a pocket.
+ * <p/>
+ * <p>Thread-safety: not thread-safe.
+ */
+final class RunningStatistics {
+
+    private final int mWarmUpCount;
+    private final double mAlpha;
+
+    private long mCount;
+    private double mMean;
+
+    /**
+     * Welford's sum of squared differences from the mean during warm-up, the EWMA variance after.
+     */
+    private double mM2OrVariance;
+
+    /**
+     * @param warmUpCount number of values weighted equally before switching to the EWMA.
+     * @param alpha       weight {@code (0, 1]} of each value after the warm-up.
+     */
+    RunningStatistics(int warmUpCount, double alpha) {
+        if (warmUpCount < 1) {
+            throw new IllegalArgumentException("warm-up count: " + warmUpCount);
+        }
+        if ((alpha <= 0) || (alpha > 1)) {
+            throw new IllegalArgumentException("alpha: " + alpha);
+        }
+        mWarmUpCount = warmUpCount;
+        mAlpha = alpha;
+    }
+
+    void add(double value) {
+        mCount++;
+        double delta = value - mMean;
+        if (mCount <= mWarmUpCount) {
+            mMean += delta / mCount;
+            mM2OrVariance += delta * (value - mMean);
+            if (mCount == mWarmUpCount) {
+                // Switch to the EWMA, which tracks the variance itself.
+                mM2OrVariance /= mCount;
+            }
+        } else {
+            mMean += mAlpha * delta;
+            mM2OrVariance = (1 - mAlpha) * (mM2OrVariance + mAlpha * delta * delta);
+        }
+    }
+
+    /**
+     * Gets the number of values added so far.
+     */
+    long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Whether enough values have been added for the estimate to be meaningful.
+     */
+    boolean isWarmedUp() {
+        return mCount >= mWarmUpCount;
+    }
+
+    double getMean() {
+        return mMean;
+    }
+
+    double getVariance() {
+        if (mCount >= mWarmUpCount) {
+            return mM2OrVariance;
+        }
+        return (mCount < 2) ? 0 : mM2OrVariance / mCount;
+    }
+
+    double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * Restores a previously saved estimate.
+     *
+     * @param count    number of values the estimate is based on.
+     * @param mean     mean of the values.
+     * @param variance variance of the values.
+     */
+    void restore(long count, double mean, double variance) {
+        if ((count < 0) || (variance < 0)) {
+            throw new IllegalArgumentException("count: " + count + ", variance: " + variance);
+        }
+        mCount = count;
+        mMean = mean;
+        mM2OrVariance = (count >= mWarmUpCount) ? variance : variance * count;
+    }
+
+    void reset() {
+        mCount = 0;
+        mMean = 0;
+        mM2OrVariance = 0;
+    }
+}
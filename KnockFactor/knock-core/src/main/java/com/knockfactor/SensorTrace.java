@@ -0,0 +1,178 @@
+package com.knockfactor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Recorded accelerometer samples together with the double knocks labeled in them.
+ * <p/>
+ * <p>Traces are stored as text, one record per line, with whitespace separated fields, so that they
+ * can be labeled and trimmed in a text editor:
+ * <pre>
+ * # knock-factor sensor trace v1
+ * s &lt;timestamp&gt; &lt;x&gt; &lt;y&gt; &lt;z&gt;    accelerometer sample
+ * k &lt;timestamp&gt;                    labeled double knock (time of the second knock)
+ * d &lt;timestamp&gt;                    double knock detected while recording
+ * </pre>
+ * Timestamps are in nanoseconds, as in {@code android.hardware.SensorEvent.timestamp}, and
+ * accelerations in m/s^2. Lines starting with {@code #} are comments. Records of other types are
+ * ignored, so that the format can be extended.
+ * <p/>
+ * <p>Samples are stored in primitive arrays so that they can be replayed without allocating.
+ * <p/>
+ * <p>Thread-safety: instances of this class are immutable and are thus thread-safe.
+ */
+final class SensorTrace {
+
+    static final String HEADER = "# knock-factor sensor trace v1";
+
+    static final char RECORD_SAMPLE = 's';
+    static final char RECORD_LABEL = 'k';
+    static final char RECORD_DETECTION = 'd';
+
+    private final long[] mTimestamps;
+    private final float[] mX;
+    private final float[] mY;
+    private final float[] mZ;
+    private final long[] mLabels;
+    private final long[] mRecordedDetections;
+
+    private SensorTrace(long[] timestamps, float[] x, float[] y, float[] z, long[] labels,
+                        long[] recordedDetections) {
+        mTimestamps = timestamps;
+        mX = x;
+        mY = y;
+        mZ = z;
+        mLabels = labels;
+        mRecordedDetections = recordedDetections;
+    }
+
+    /**
+     * Reads a trace.
+     *
+     * @throws IOException if the trace cannot be read or is malformed.
+     */
+    static SensorTrace read(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        int sampleCount = 0;
+        long[] timestamps = new long[1024];
+        float[] x = new float[1024];
+        float[] y = new float[1024];
+        float[] z = new float[1024];
+        int labelCount = 0;
+        long[] labels = new long[16];
+        int detectionCount = 0;
+        long[] detections = new long[16];
+
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if ((line.length() == 0) || (line.charAt(0) == '#')) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].length() != 1) {
+                    continue;
+                }
+                switch (fields[0].charAt(0)) {
+                    case RECORD_SAMPLE:
+                        checkFieldCount(fields, 5);
+                        if (sampleCount == timestamps.length) {
+                            timestamps = Arrays.copyOf(timestamps, sampleCount * 2);
+                            x = Arrays.copyOf(x, sampleCount * 2);
+                            y = Arrays.copyOf(y, sampleCount * 2);
+                            z = Arrays.copyOf(z, sampleCount * 2);
+                        }
+                        timestamps[sampleCount] = Long.parseLong(fields[1]);
+                        x[sampleCount] = Float.parseFloat(fields[2]);
+                        y[sampleCount] = Float.parseFloat(fields[3]);
+                        z[sampleCount] = Float.parseFloat(fields[4]);
+                        sampleCount++;
+                        break;
+                    case RECORD_LABEL:
+                        checkFieldCount(fields, 2);
+                        if (labelCount == labels.length) {
+                            labels = Arrays.copyOf(labels, labelCount * 2);
+                        }
+                        labels[labelCount++] = Long.parseLong(fields[1]);
+                        break;
+                    case RECORD_DETECTION:
+                        checkFieldCount(fields, 2);
+                        if (detectionCount == detections.length) {
+                            detections = Arrays.copyOf(detections, detectionCount * 2);
+                        }
+                        detections[detectionCount++] = Long.parseLong(fields[1]);
+                        break;
+                    default:
+                        // Unknown record type.
+                        break;
+                }
+            } catch (IllegalArgumentException e) {
+                // Also covers NumberFormatException.
+                throw new IOException("Malformed record on line " + lineNumber + ": " + line, e);
+            }
+        }
+
+        labels = Arrays.copyOf(labels, labelCount);
+        detections = Arrays.copyOf(detections, detectionCount);
+        // Labels are matched in time order, but may have been added by hand in any order.
+        Arrays.sort(labels);
+        Arrays.sort(detections);
+        return new SensorTrace(Arrays.copyOf(timestamps, sampleCount),
+                Arrays.copyOf(x, sampleCount), Arrays.copyOf(y, sampleCount),
+                Arrays.copyOf(z, sampleCount), labels, detections);
+    }
+
+    private static void checkFieldCount(String[] fields, int count) {
+        if (fields.length != count) {
+            throw new IllegalArgumentException("Expected " + count + " fields");
+        }
+    }
+
+    int getSampleCount() {
+        return mTimestamps.length;
+    }
+
+    long getTimestampNanos(int index) {
+        return mTimestamps[index];
+    }
+
+    float getX(int index) {
+        return mX[index];
+    }
+
+    float getY(int index) {
+        return mY[index];
+    }
+
+    float getZ(int index) {
+        return mZ[index];
+    }
+
+    int getLabelCount() {
+        return mLabels.length;
+    }
+
+    /**
+     * Gets the time (nanoseconds) of a labeled double knock. Labels are sorted by time.
+     */
+    long getLabelTimestampNanos(int index) {
+        return mLabels[index];
+    }
+
+    int getRecordedDetectionCount() {
+        return mRecordedDetections.length;
+    }
+
+    /**
+     * Gets the time (nanoseconds) of a double knock detected while the trace was recorded.
+     */
+    long getRecordedDetectionTimestampNanos(int index) {
+        return mRecordedDetections[index];
+    }
+}
@@ -0,0 +1,59 @@
+package com.knockfactor;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes accelerometer samples and knocks in the {@link SensorTrace} format.
+ * <p/>
+ * <p>Meant for recording traces in debug builds: formatting the records allocates, so it should not
+ * be enabled otherwise.
+ * <p/>
+ * <p>Thread-safety: not thread-safe.
+ */
+final class SensorTraceWriter implements Closeable {
+
+    private final Writer mOut;
+
+    /**
+     * Creates a writer and writes the trace header.
+     */
+    SensorTraceWriter(Writer out) throws IOException {
+        mOut = new BufferedWriter(out);
+        mOut.write(SensorTrace.HEADER);
+        mOut.write('\n');
+    }
+
+    /**
+     * Writes an accelerometer sample.
+     */
+    void writeSample(long timestampNanos, float x, float y, float z) throws IOException {
+        mOut.write(SensorTrace.RECORD_SAMPLE + " " + timestampNanos + " " + x + " " + y + " " + z
+                + "\n");
+    }
+
+    /**
+     * Writes a labeled double knock.
+     */
+    void writeLabel(long timestampNanos) throws IOException {
+        mOut.write(SensorTrace.RECORD_LABEL + " " + timestampNanos + "\n");
+    }
+
+    /**
+     * Writes a double knock detected while recording.
+     */
+    void writeDetection(long timestampNanos) throws IOException {
+        mOut.write(SensorTrace.RECORD_DETECTION + " " + timestampNanos + "\n");
+    }
+
+    void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+}
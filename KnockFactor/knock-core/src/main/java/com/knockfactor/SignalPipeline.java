@@ -0,0 +1,149 @@
+package com.knockfactor;
+
+/**
+ * Streaming signal pipeline which turns three-axis accelerometer samples into impact peaks:
+ * <ol>
+ * <li>gravity is removed from each axis ({@link GravityFilter}),</li>
+ * <li>the three axes are combined into the magnitude of the acceleration,</li>
+ * <li>the magnitude goes through the configured {@link SignalStage}s (by default a
+ * {@link HighPassFilter}), and</li>
+ * <li>peaks are picked from the result ({@link PeakDetector}).</li>
+ * </ol>
+ * With a {@link KnockThresholdCalibrator}, the range of peak amplitudes follows the noise floor of
+ * the result instead of being fixed.
+ * <p/>
+ * <p>All state is allocated at construction, so {@link #process(long, float, float, float)} can be
+ * invoked from a sensor callback for every sample without allocating.
+ * <p/>
+ * <p>Thread-safety: not thread-safe; samples must be fed from a single thread.
+ */
+final class SignalPipeline {
+
+    static final long DEFAULT_GRAVITY_TIME_CONSTANT_NANOS = 500 * 1000000L;
+    static final long DEFAULT_HIGH_PASS_TIME_CONSTANT_NANOS = 100 * 1000000L;
+    static final int DEFAULT_PEAK_RADIUS = 2;
+    static final float DEFAULT_MIN_AMPLITUDE = 2;
+    static final float DEFAULT_MAX_AMPLITUDE = 7;
+    static final long DEFAULT_REFRACTORY_NANOS = 100 * 1000000L;
+
+    private final GravityFilter mGravityFilter;
+    private final SignalStage[] mStages;
+    private final PeakDetector mPeakDetector;
+
+    /**
+     * Calibrator of the peak amplitudes or {@code null} for fixed amplitudes.
+     */
+    private final KnockThresholdCalibrator mCalibrator;
+    private final float[] mLinear = new float[3];
+
+    /**
+     * @param gravityFilter filter removing gravity from the samples.
+     * @param stages        stages the magnitude of the acceleration goes through, in order.
+     * @param peakDetector  detector of the peaks in the output of the last stage.
+     */
+    SignalPipeline(GravityFilter gravityFilter, SignalStage[] stages, PeakDetector peakDetector) {
+        this(gravityFilter, stages, peakDetector, null);
+    }
+
+    /**
+     * @param calibrator calibrator adapting the amplitudes of the peak detector or {@code null}
+     *                   for fixed amplitudes.
+     */
+    SignalPipeline(GravityFilter gravityFilter, SignalStage[] stages, PeakDetector peakDetector,
+                   KnockThresholdCalibrator calibrator) {
+        mGravityFilter = gravityFilter;
+        mStages = stages.clone();
+        mPeakDetector = peakDetector;
+        mCalibrator = calibrator;
+        if (calibrator != null) {
+            peakDetector.setAmplitudeRange(
+                    calibrator.getMinAmplitude(), calibrator.getMaxAmplitude());
+        }
+    }
+
+    /**
+     * Creates a pipeline with the default filters and peak thresholds.
+     */
+    static SignalPipeline createDefault() {
+        return create(DEFAULT_MIN_AMPLITUDE, DEFAULT_MAX_AMPLITUDE);
+    }
+
+    /**
+     * Creates a pipeline with the default filters and the provided peak thresholds.
+     */
+    static SignalPipeline create(float minAmplitude, float maxAmplitude) {
+        return new SignalPipeline(
+                new GravityFilter(DEFAULT_GRAVITY_TIME_CONSTANT_NANOS),
+                new SignalStage[]{new HighPassFilter(DEFAULT_HIGH_PASS_TIME_CONSTANT_NANOS)},
+                new PeakDetector(DEFAULT_PEAK_RADIUS, minAmplitude, maxAmplitude,
+                        DEFAULT_REFRACTORY_NANOS));
+    }
+
+    /**
+     * Creates a pipeline with the default filters whose peak amplitudes are adapted by the
+     * calibrator.
+     */
+    static SignalPipeline createCalibrated(KnockThresholdCalibrator calibrator) {
+        return new SignalPipeline(
+                new GravityFilter(DEFAULT_GRAVITY_TIME_CONSTANT_NANOS),
+                new SignalStage[]{new HighPassFilter(DEFAULT_HIGH_PASS_TIME_CONSTANT_NANOS)},
+                new PeakDetector(DEFAULT_PEAK_RADIUS, DEFAULT_MIN_AMPLITUDE,
+                        DEFAULT_MAX_AMPLITUDE, DEFAULT_REFRACTORY_NANOS),
+                calibrator);
+    }
+
+    /**
+     * Processes the next sample.
+     *
+     * @param timestampNanos time (nanoseconds) at which the sample was taken, as in
+     *                       {@code android.hardware.SensorEvent.timestamp}.
+     * @param x              X-axis acceleration (m/s^2).
+     * @param y              Y-axis acceleration (m/s^2).
+     * @param z              Z-axis acceleration (m/s^2).
+     * @return {@code true} if a peak was detected, whose time and amplitude are then available from
+     *         {@link #getPeakTimestampNanos()} and {@link #getPeakAmplitude()}.
+     */
+    boolean process(long timestampNanos, float x, float y, float z) {
+        float[] linear = mLinear;
+        mGravityFilter.process(timestampNanos, x, y, z, linear);
+        float value = (float) Math.sqrt(
+                linear[0] * linear[0] + linear[1] * linear[1] + linear[2] * linear[2]);
+        for (SignalStage stage : mStages) {
+            value = stage.process(timestampNanos, value);
+        }
+        if (mCalibrator != null) {
+            int position = KnockThresholdCalibrator.getPosition(mGravityFilter.getGravity(0),
+                    mGravityFilter.getGravity(1), mGravityFilter.getGravity(2));
+            if (mCalibrator.onSample(value, position)) {
+                mPeakDetector.setAmplitudeRange(
+                        mCalibrator.getMinAmplitude(), mCalibrator.getMaxAmplitude());
+            }
+        }
+        return mPeakDetector.process(timestampNanos, value);
+    }
+
+    /**
+     * Gets the time (nanoseconds) at which the most recent peak was taken.
+     */
+    long getPeakTimestampNanos() {
+        return mPeakDetector.getPeakTimestampNanos();
+    }
+
+    /**
+     * Gets the amplitude of the most recent peak.
+     */
+    float getPeakAmplitude() {
+        return mPeakDetector.getPeakAmplitude();
+    }
+
+    /**
+     * Forgets all samples seen so far.
+     */
+    void reset() {
+        mGravityFilter.reset();
+        for (SignalStage stage : mStages) {
+            stage.reset();
+        }
+        mPeakDetector.reset();
+    }
+}
@@ -0,0 +1,23 @@
+package com.knockfactor;
+
+/**
+ * Stage of a {@link SignalPipeline} which transforms a scalar signal one sample at a time.
+ * <p/>
+ * <p>Implementations are invoked for every sensor sample and must therefore not allocate.
+ */
+interface SignalStage {
+
+    /**
+     * Processes the next sample.
+     *
+     * @param timestampNanos time (nanoseconds) at which the sample was taken.
+     * @param value          value of the sample.
+     * @return value of the output sample taken at the same time.
+     */
+    float process(long timestampNanos, float value);
+
+    /**
+     * Forgets all samples seen so far.
+     */
+    void reset();
+}
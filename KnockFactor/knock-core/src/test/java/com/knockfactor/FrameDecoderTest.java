@@ -0,0 +1,184 @@
+package com.knockfactor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link FrameDecoder}, fed with frames written by {@link FrameEncoder}.
+ */
+public class FrameDecoderTest {
+
+    private final RecordingListener mListener = new RecordingListener();
+    private final FrameDecoder mDecoder = new FrameDecoder(mListener);
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] data = encode(
+                FrameProtocol.TYPE_HELLO, 0, null,
+                FrameProtocol.TYPE_CODE_REQUEST, 0x7FFFFFFF, "github",
+                FrameProtocol.TYPE_CODE_RESPONSE, -2, "123456");
+        mDecoder.feed(data, 0, data.length);
+
+        assertEquals(3, mListener.mFrames.size());
+        mListener.assertFrame(0, FrameProtocol.TYPE_HELLO, 0, "");
+        mListener.assertFrame(1, FrameProtocol.TYPE_CODE_REQUEST, 0x7FFFFFFF, "github");
+        mListener.assertFrame(2, FrameProtocol.TYPE_CODE_RESPONSE, -2, "123456");
+    }
+
+    @Test
+    public void testFramesSplitAcrossFeeds() throws Exception {
+        byte[] data = encode(
+                FrameProtocol.TYPE_CODE_REQUEST, 1, "mail.google",
+                FrameProtocol.TYPE_KEEP_ALIVE, 2, null);
+        for (int i = 0; i < data.length; i++) {
+            mDecoder.feed(data, i, 1);
+            // Reported only once complete.
+            int expected = (i < FrameProtocol.HEADER_LENGTH + 11 - 1) ? 0
+                    : (i < data.length - 1) ? 1 : 2;
+            assertEquals(expected, mListener.mFrames.size());
+        }
+        mListener.assertFrame(0, FrameProtocol.TYPE_CODE_REQUEST, 1, "mail.google");
+        mListener.assertFrame(1, FrameProtocol.TYPE_KEEP_ALIVE, 2, "");
+    }
+
+    @Test
+    public void testReadFromPartialReads() throws Exception {
+        byte[] data = encode(
+                FrameProtocol.TYPE_CODE_REQUEST, 1, "dropbox",
+                FrameProtocol.TYPE_CODE_REQUEST, 2, "github");
+        InputStream in = new TrickleInputStream(data, 3);
+        int total = 0;
+        int bytes;
+        while ((bytes = mDecoder.readFrom(in)) >= 0) {
+            assertTrue(bytes <= 3);
+            total += bytes;
+        }
+        assertEquals(data.length, total);
+        assertEquals(2, mListener.mFrames.size());
+        mListener.assertFrame(0, FrameProtocol.TYPE_CODE_REQUEST, 1, "dropbox");
+        mListener.assertFrame(1, FrameProtocol.TYPE_CODE_REQUEST, 2, "github");
+    }
+
+    @Test
+    public void testLongestPayload() throws Exception {
+        byte[] payload = new byte[FrameProtocol.MAX_PAYLOAD_LENGTH];
+        Arrays.fill(payload, (byte) 'a');
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.write(out, FrameProtocol.TYPE_CODE_REQUEST, 1, payload, 0, payload.length);
+        encoder.write(out, FrameProtocol.TYPE_KEEP_ALIVE, 2, null);
+        byte[] data = out.toByteArray();
+
+        int bytes;
+        InputStream in = new ByteArrayInputStream(data);
+        while ((bytes = mDecoder.readFrom(in)) >= 0) {
+            assertTrue(bytes > 0);
+        }
+        assertEquals(2, mListener.mFrames.size());
+        mListener.assertFrame(0, FrameProtocol.TYPE_CODE_REQUEST, 1, new String(payload, "UTF-8"));
+        mListener.assertFrame(1, FrameProtocol.TYPE_KEEP_ALIVE, 2, "");
+    }
+
+    @Test
+    public void testRejectsOversizedFrame() throws Exception {
+        int length = FrameProtocol.MAX_PAYLOAD_LENGTH + 1;
+        byte[] header = {(byte) FrameProtocol.VERSION, FrameProtocol.TYPE_CODE_REQUEST, 0, 0, 0, 1,
+                (byte) (length >>> 8), (byte) length};
+        try {
+            // Rejected from the header alone, without waiting for the payload.
+            mDecoder.feed(header, 0, header.length);
+            fail();
+        } catch (ProtocolException expected) {
+        }
+        assertEquals(0, mListener.mFrames.size());
+    }
+
+    @Test
+    public void testRejectsUnsupportedVersion() throws Exception {
+        byte[] data = encode(FrameProtocol.TYPE_HELLO, 0, null);
+        data[0] = (byte) (FrameProtocol.VERSION + 1);
+        try {
+            mDecoder.feed(data, 0, data.length);
+            fail();
+        } catch (ProtocolException expected) {
+        }
+        assertEquals(0, mListener.mFrames.size());
+    }
+
+    @Test
+    public void testIsFrameStart() throws Exception {
+        byte[] hello = encode(FrameProtocol.TYPE_HELLO, 0, null);
+        assertTrue(FrameDecoder.isFrameStart(hello, 0, hello.length));
+        // Only the first byte is needed.
+        assertTrue(FrameDecoder.isFrameStart(hello, 0, 1));
+
+        // Raw text from legacy desktops, and frames of other versions, fall back to raw text.
+        byte[] text = "mail.google".getBytes("UTF-8");
+        assertFalse(FrameDecoder.isFrameStart(text, 0, text.length));
+        hello[0] = (byte) (FrameProtocol.VERSION + 1);
+        assertFalse(FrameDecoder.isFrameStart(hello, 0, hello.length));
+        assertFalse(FrameDecoder.isFrameStart(new byte[0], 0, 0));
+    }
+
+    /**
+     * Encodes frames given as triples of type, request id and textual payload.
+     */
+    private static byte[] encode(Object... frames) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder();
+        for (int i = 0; i < frames.length; i += 3) {
+            encoder.write(out, (Integer) frames[i], (Integer) frames[i + 1],
+                    (String) frames[i + 2]);
+        }
+        return out.toByteArray();
+    }
+
+    private static class RecordingListener implements FrameDecoder.Listener {
+        private final List<Object[]> mFrames = new ArrayList<Object[]>();
+
+        @Override
+        public void onFrame(int type, int requestId, byte[] payload, int offset, int length) {
+            mFrames.add(new Object[]{type, requestId,
+                    Arrays.copyOfRange(payload, offset, offset + length)});
+        }
+
+        private void assertFrame(int index, int type, int requestId, String payload)
+                throws IOException {
+            Object[] frame = mFrames.get(index);
+            assertEquals(type, frame[0]);
+            assertEquals(requestId, frame[1]);
+            assertArrayEquals(payload.getBytes("UTF-8"), (byte[]) frame[2]);
+        }
+    }
+
+    /**
+     * Stream returning at most a given number of bytes per read.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final int mMaxRead;
+
+        private TrickleInputStream(byte[] data, int maxRead) {
+            super(data);
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, mMaxRead));
+        }
+    }
+}
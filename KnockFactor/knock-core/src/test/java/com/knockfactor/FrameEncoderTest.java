@@ -0,0 +1,85 @@
+package com.knockfactor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link FrameEncoder}.
+ */
+public class FrameEncoderTest {
+
+    @Test
+    public void testHeaderLayout() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameEncoder().write(out, FrameProtocol.TYPE_CODE_RESPONSE, 0x01020304, "123456");
+        assertArrayEquals(new byte[]{
+                1, 3, 1, 2, 3, 4, 0, 6, '1', '2', '3', '4', '5', '6'}, out.toByteArray());
+    }
+
+    @Test
+    public void testNoPayload() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameEncoder().write(out, FrameProtocol.TYPE_KNOCK, -1, null);
+        assertArrayEquals(new byte[]{1, 1, -1, -1, -1, -1, 0, 0}, out.toByteArray());
+    }
+
+    @Test
+    public void testPayloadLengthIsInUtf8Bytes() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameEncoder().write(out, FrameProtocol.TYPE_CODE_REQUEST, 0, "\u00e9t\u00e9");
+        byte[] frame = out.toByteArray();
+        assertEquals(FrameProtocol.HEADER_LENGTH + 5, frame.length);
+        assertEquals(0, frame[6]);
+        assertEquals(5, frame[7]);
+    }
+
+    @Test
+    public void testLongestPayload() throws Exception {
+        byte[] payload = new byte[FrameProtocol.MAX_PAYLOAD_LENGTH];
+        payload[payload.length - 1] = 42;
+        CountingOutputStream out = new CountingOutputStream();
+        new FrameEncoder().write(out, FrameProtocol.TYPE_CODE_RESPONSE, 7, payload, 0,
+                payload.length);
+        byte[] frame = out.toByteArray();
+        assertEquals(FrameProtocol.HEADER_LENGTH + payload.length, frame.length);
+        assertEquals(FrameProtocol.MAX_PAYLOAD_LENGTH >>> 8, frame[6] & 0xFF);
+        assertEquals(FrameProtocol.MAX_PAYLOAD_LENGTH & 0xFF, frame[7] & 0xFF);
+        assertEquals(42, frame[frame.length - 1]);
+        // The whole frame is written at once.
+        assertEquals(1, out.mWrites);
+    }
+
+    @Test
+    public void testRejectsOversizedPayload() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new FrameEncoder().write(out, FrameProtocol.TYPE_CODE_RESPONSE, 0,
+                    new byte[FrameProtocol.MAX_PAYLOAD_LENGTH + 1], 0,
+                    FrameProtocol.MAX_PAYLOAD_LENGTH + 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, out.size());
+    }
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        private int mWrites;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            mWrites++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+    }
+}
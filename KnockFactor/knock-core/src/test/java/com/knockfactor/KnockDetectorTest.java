@@ -0,0 +1,127 @@
+package com.knockfactor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link KnockDetector} and its default {@link SignalPipeline}, fed with noiseless
+ * synthetic samples at 50 Hz in which a knock is a single-sample impulse.
+ */
+public class KnockDetectorTest {
+
+    private static final long SAMPLE_PERIOD_NANOS = 20 * 1000000L;
+    private static final float GRAVITY = 9.81f;
+    private static final float KNOCK = 4;
+
+    /**
+     * Delay of a detection after the second knock: its peak is confirmed
+     * {@link SignalPipeline#DEFAULT_PEAK_RADIUS} samples later.
+     */
+    private static final long DETECTION_DELAY_NANOS =
+            SignalPipeline.DEFAULT_PEAK_RADIUS * SAMPLE_PERIOD_NANOS;
+
+    @Test
+    public void testDoubleKnockOnEachAxis() {
+        for (int axis = 0; axis < 3; axis++) {
+            assertEquals("axis " + axis,
+                    Collections.singletonList(millis(2300) + DETECTION_DELAY_NANOS),
+                    detect(new float[] {0, 0, GRAVITY}, axis, KNOCK, 2000, 2300));
+        }
+    }
+
+    @Test
+    public void testDoubleKnockOnTiltedPhone() {
+        float component = (float) (GRAVITY / Math.sqrt(2));
+        assertEquals(Collections.singletonList(millis(2300) + DETECTION_DELAY_NANOS),
+                detect(new float[] {0, component, component}, 2, KNOCK, 2000, 2300));
+    }
+
+    @Test
+    public void testSingleKnockIsNotDetected() {
+        assertEquals(Collections.<Long>emptyList(),
+                detect(new float[] {0, 0, GRAVITY}, 2, KNOCK, 2000));
+    }
+
+    @Test
+    public void testKnocksTooCloseAreOneKnock() {
+        assertEquals(Collections.<Long>emptyList(),
+                detect(new float[] {0, 0, GRAVITY}, 2, KNOCK, 2000, 2060));
+    }
+
+    @Test
+    public void testKnocksTooFarApartStartNewDoubleKnock() {
+        assertEquals(Collections.singletonList(millis(4800) + DETECTION_DELAY_NANOS),
+                detect(new float[] {0, 0, GRAVITY}, 2, KNOCK, 2000, 4500, 4800));
+    }
+
+    @Test
+    public void testConsecutiveDoubleKnocks() {
+        assertEquals(Arrays.asList(millis(2300) + DETECTION_DELAY_NANOS,
+                        millis(3600) + DETECTION_DELAY_NANOS),
+                detect(new float[] {0, 0, GRAVITY}, 2, KNOCK, 2000, 2300, 3300, 3600));
+    }
+
+    @Test
+    public void testImpactsAboveMaxAmplitudeAreNotKnocks() {
+        assertEquals(Collections.<Long>emptyList(),
+                detect(new float[] {0, 0, GRAVITY}, 2, 4 * SignalPipeline.DEFAULT_MAX_AMPLITUDE,
+                        2000, 2300));
+    }
+
+    @Test
+    public void testImpactsBelowMinAmplitudeAreNotKnocks() {
+        assertEquals(Collections.<Long>emptyList(),
+                detect(new float[] {0, 0, GRAVITY}, 2, SignalPipeline.DEFAULT_MIN_AMPLITUDE / 2,
+                        2000, 2300));
+    }
+
+    @Test
+    public void testInvalidGaps() {
+        try {
+            new KnockDetector(SignalPipeline.createDefault(), -1, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new KnockDetector(SignalPipeline.createDefault(), 2, 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Feeds five seconds of samples with the provided gravity into a new detector, adding the
+     * impulse to one axis at the provided times.
+     *
+     * @return timestamps of the samples which completed a double knock.
+     */
+    private static List<Long> detect(float[] gravity, int axis, float impulse,
+                                     long... knockMillis) {
+        KnockDetector detector = new KnockDetector();
+        List<Long> detections = new ArrayList<Long>();
+        float[] values = new float[3];
+        for (long timestamp = 0; timestamp < millis(5000); timestamp += SAMPLE_PERIOD_NANOS) {
+            System.arraycopy(gravity, 0, values, 0, 3);
+            for (long knock : knockMillis) {
+                if (millis(knock) == timestamp) {
+                    values[axis] += impulse;
+                }
+            }
+            if (detector.onSample(timestamp, values[0], values[1], values[2])) {
+                detections.add(timestamp);
+            }
+        }
+        return detections;
+    }
+
+    private static long millis(long millis) {
+        return millis * 1000000L;
+    }
+}
@@ -0,0 +1,111 @@
+package com.knockfactor;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link KnockEventQueue}.
+ */
+public class KnockEventQueueTest {
+
+    @Test
+    public void testEmpty() {
+        KnockEventQueue queue = new KnockEventQueue(4);
+        assertEquals(KnockEventQueue.EMPTY, queue.poll());
+    }
+
+    @Test
+    public void testFirstInFirstOut() {
+        KnockEventQueue queue = new KnockEventQueue(4);
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertEquals(1, queue.poll());
+        assertTrue(queue.offer(3));
+        assertEquals(2, queue.poll());
+        assertEquals(3, queue.poll());
+        assertEquals(KnockEventQueue.EMPTY, queue.poll());
+    }
+
+    @Test
+    public void testFullQueueRejectsKnocks() {
+        KnockEventQueue queue = new KnockEventQueue(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+
+        // The rejected knock is dropped; the queued ones are kept.
+        assertEquals(0, queue.poll());
+        assertTrue(queue.offer(5));
+        assertEquals(1, queue.poll());
+        assertEquals(2, queue.poll());
+        assertEquals(3, queue.poll());
+        assertEquals(5, queue.poll());
+        assertEquals(KnockEventQueue.EMPTY, queue.poll());
+    }
+
+    @Test
+    public void testWrapsAround() {
+        KnockEventQueue queue = new KnockEventQueue(2);
+        for (long i = 0; i < 100; i++) {
+            assertTrue(queue.offer(i));
+            assertTrue(queue.offer(-i));
+            assertEquals(i, queue.poll());
+            assertEquals(-i, queue.poll());
+        }
+    }
+
+    @Test
+    public void testCapacityMustBePowerOfTwo() {
+        for (int capacity : new int[] {-1, 0, 3, 12}) {
+            try {
+                new KnockEventQueue(capacity);
+                fail("capacity: " + capacity);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        new KnockEventQueue(1);
+    }
+
+    @Test
+    public void testSingleProducerSingleConsumer() throws Exception {
+        final int count = 200000;
+        final KnockEventQueue queue = new KnockEventQueue(16);
+        final AtomicReference<Throwable> producerFailure = new AtomicReference<Throwable>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (long i = 0; i < count; i++) {
+                        while (!queue.offer(i)) {
+                            Thread.yield();
+                        }
+                    }
+                } catch (Throwable e) {
+                    producerFailure.set(e);
+                }
+            }
+        });
+        producer.start();
+
+        // Every knock arrives exactly once and in order.
+        for (long expected = 0; expected < count; ) {
+            long knock = queue.poll();
+            if (knock == KnockEventQueue.EMPTY) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected++, knock);
+        }
+        producer.join();
+        assertNull(producerFailure.get());
+        assertEquals(KnockEventQueue.EMPTY, queue.poll());
+    }
+}
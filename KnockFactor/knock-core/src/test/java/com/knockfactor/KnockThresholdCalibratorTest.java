@@ -0,0 +1,157 @@
+package com.knockfactor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link KnockThresholdCalibrator}.
+ */
+public class KnockThresholdCalibratorTest {
+
+    private static final float DELTA = 1e-5f;
+
+    private KnockThresholdCalibrator mCalibrator;
+
+    @Before
+    public void setUp() {
+        mCalibrator = new KnockThresholdCalibrator(0);
+    }
+
+    @Test
+    public void testGetPosition() {
+        assertEquals(KnockThresholdCalibrator.POSITION_FLAT,
+                KnockThresholdCalibrator.getPosition(0, 0, 9.81f));
+        assertEquals(KnockThresholdCalibrator.POSITION_FLAT,
+                KnockThresholdCalibrator.getPosition(1, 1, -9.81f));
+        assertEquals(KnockThresholdCalibrator.POSITION_OTHER,
+                KnockThresholdCalibrator.getPosition(0, 9.81f, 0));
+        assertEquals(KnockThresholdCalibrator.POSITION_OTHER,
+                KnockThresholdCalibrator.getPosition(6.9f, 0, 6.9f));
+    }
+
+    @Test
+    public void testDefaultsUntilWarmedUp() {
+        for (int i = 1; i < KnockThresholdCalibrator.WARM_UP_COUNT; i++) {
+            assertFalse(mCalibrator.onSample(0.1f, KnockThresholdCalibrator.POSITION_OTHER));
+            assertDefaults();
+        }
+
+        // Quiet noise: the smallest amplitude drops to its lower bound.
+        assertTrue(mCalibrator.onSample(0.1f, KnockThresholdCalibrator.POSITION_OTHER));
+        assertEquals(KnockThresholdCalibrator.LOWEST_MIN_AMPLITUDE,
+                mCalibrator.getMinAmplitude(), DELTA);
+        assertEquals(SignalPipeline.DEFAULT_MAX_AMPLITUDE, mCalibrator.getMaxAmplitude(), DELTA);
+    }
+
+    @Test
+    public void testKnocksAreNotNoise() {
+        for (int i = 0; i < 2 * KnockThresholdCalibrator.WARM_UP_COUNT; i++) {
+            mCalibrator.onSample(SignalPipeline.DEFAULT_MIN_AMPLITUDE,
+                    KnockThresholdCalibrator.POSITION_OTHER);
+        }
+        assertEquals(0, mCalibrator.getStatistics(KnockThresholdCalibrator.POSITION_OTHER)
+                .getCount());
+        assertDefaults();
+    }
+
+    @Test
+    public void testClampsToHighestMinAmplitude() {
+        warmUp(KnockThresholdCalibrator.POSITION_OTHER, 0, 1.9f);
+        assertEquals(KnockThresholdCalibrator.HIGHEST_MIN_AMPLITUDE,
+                mCalibrator.getMinAmplitude(), DELTA);
+        // The largest amplitude keeps its default ratio to the smallest one.
+        assertEquals(KnockThresholdCalibrator.HIGHEST_MIN_AMPLITUDE
+                        * SignalPipeline.DEFAULT_MAX_AMPLITUDE / SignalPipeline.DEFAULT_MIN_AMPLITUDE,
+                mCalibrator.getMaxAmplitude(), DELTA);
+    }
+
+    @Test
+    public void testMaxAmplitudeCappedBySensorRange() {
+        mCalibrator = new KnockThresholdCalibrator(10);
+        warmUp(KnockThresholdCalibrator.POSITION_OTHER, 0, 1.9f);
+        assertEquals(KnockThresholdCalibrator.HIGHEST_MIN_AMPLITUDE,
+                mCalibrator.getMinAmplitude(), DELTA);
+        assertEquals(10, mCalibrator.getMaxAmplitude(), DELTA);
+
+        // Leaves room above the smallest amplitude on sensors with a tiny range.
+        mCalibrator = new KnockThresholdCalibrator(4);
+        warmUp(KnockThresholdCalibrator.POSITION_OTHER, 0, 1.9f);
+        assertEquals(KnockThresholdCalibrator.HIGHEST_MIN_AMPLITUDE * 1.5f,
+                mCalibrator.getMaxAmplitude(), DELTA);
+    }
+
+    @Test
+    public void testTracksPositionsSeparately() {
+        warmUp(KnockThresholdCalibrator.POSITION_OTHER, 0, 1.9f);
+        assertEquals(KnockThresholdCalibrator.HIGHEST_MIN_AMPLITUDE,
+                mCalibrator.getMinAmplitude(), DELTA);
+
+        // Not warmed up while flat yet.
+        assertTrue(mCalibrator.onSample(0.1f, KnockThresholdCalibrator.POSITION_FLAT));
+        assertDefaults();
+
+        assertTrue(mCalibrator.onSample(0.1f, KnockThresholdCalibrator.POSITION_OTHER));
+        assertEquals(KnockThresholdCalibrator.HIGHEST_MIN_AMPLITUDE,
+                mCalibrator.getMinAmplitude(), DELTA);
+    }
+
+    @Test
+    public void testRestore() {
+        mCalibrator.restore(KnockThresholdCalibrator.POSITION_OTHER,
+                KnockThresholdCalibrator.WARM_UP_COUNT, 0.5, 0.04);
+        // 0.5 + 8 * 0.2
+        assertEquals(2.1f, mCalibrator.getMinAmplitude(), DELTA);
+        assertEquals(2.1f * SignalPipeline.DEFAULT_MAX_AMPLITUDE
+                / SignalPipeline.DEFAULT_MIN_AMPLITUDE, mCalibrator.getMaxAmplitude(), DELTA);
+
+        RunningStatistics statistics =
+                mCalibrator.getStatistics(KnockThresholdCalibrator.POSITION_OTHER);
+        assertEquals(KnockThresholdCalibrator.WARM_UP_COUNT, statistics.getCount());
+        assertEquals(0.5, statistics.getMean(), DELTA);
+        assertEquals(0.04, statistics.getVariance(), DELTA);
+    }
+
+    @Test
+    public void testRestoreBeforeWarmUpKeepsDefaults() {
+        mCalibrator.restore(KnockThresholdCalibrator.POSITION_OTHER,
+                KnockThresholdCalibrator.WARM_UP_COUNT - 1, 0.5, 0.04);
+        assertDefaults();
+
+        // The restored samples count towards the warm-up.
+        for (int i = 1; i < KnockThresholdCalibrator.UPDATE_PERIOD; i++) {
+            mCalibrator.onSample(0.5f, KnockThresholdCalibrator.POSITION_OTHER);
+        }
+        assertDefaults();
+        assertTrue(mCalibrator.onSample(0.5f, KnockThresholdCalibrator.POSITION_OTHER));
+        // The samples at the mean slightly lower the variance.
+        assertEquals(2.1f, mCalibrator.getMinAmplitude(), 0.05f);
+    }
+
+    @Test
+    public void testRestoreOtherPosition() {
+        mCalibrator.restore(KnockThresholdCalibrator.POSITION_FLAT,
+                KnockThresholdCalibrator.WARM_UP_COUNT, 0.5, 0.04);
+        assertDefaults();
+        assertTrue(mCalibrator.onSample(0.1f, KnockThresholdCalibrator.POSITION_FLAT));
+        assertEquals(2.1f, mCalibrator.getMinAmplitude(), 0.01f);
+    }
+
+    /**
+     * Adds noise alternating between two values until the position is warmed up.
+     */
+    private void warmUp(int position, float low, float high) {
+        for (int i = 0; i < KnockThresholdCalibrator.WARM_UP_COUNT; i++) {
+            mCalibrator.onSample(((i & 1) == 0) ? low : high, position);
+        }
+        assertTrue(mCalibrator.getStatistics(position).isWarmedUp());
+    }
+
+    private void assertDefaults() {
+        assertEquals(SignalPipeline.DEFAULT_MIN_AMPLITUDE, mCalibrator.getMinAmplitude(), 0);
+        assertEquals(SignalPipeline.DEFAULT_MAX_AMPLITUDE, mCalibrator.getMaxAmplitude(), 0);
+    }
+}
@@ -0,0 +1,119 @@
+package com.knockfactor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link KnockTraceReplay} and {@link KnockDetector}, replaying a fixture trace
+ * with three labeled double knocks and a single knock in between, on a quiet accelerometer at
+ * 50 Hz.
+ */
+public class KnockTraceReplayTest {
+
+    private static final String FIXTURE = "double-knocks.txt";
+
+    /**
+     * Timestamps of the samples completing the double knocks: the peak of the second knock is
+     * confirmed {@link SignalPipeline#DEFAULT_PEAK_RADIUS} samples after it.
+     */
+    private static final List<Long> EXPECTED_DETECTIONS =
+            Arrays.asList(8340000000L, 14280000000L, 21440000000L);
+
+    private SensorTrace mTrace;
+
+    @Before
+    public void setUp() throws Exception {
+        mTrace = readFixture();
+    }
+
+    @Test
+    public void testFixture() {
+        assertEquals(1000, mTrace.getSampleCount());
+        assertEquals(3, mTrace.getLabelCount());
+    }
+
+    @Test
+    public void testDetectsDoubleKnocks() {
+        assertEquals(EXPECTED_DETECTIONS, detect(new KnockDetector()));
+    }
+
+    @Test
+    public void testDetectsDoubleKnocksCalibrated() {
+        KnockDetector detector = new KnockDetector(
+                SignalPipeline.createCalibrated(new KnockThresholdCalibrator(0)),
+                KnockDetector.DEFAULT_MIN_GAP_NANOS, KnockDetector.DEFAULT_MAX_GAP_NANOS);
+        assertEquals(EXPECTED_DETECTIONS, detect(detector));
+    }
+
+    @Test
+    public void testReplayScoresDetections() {
+        KnockTraceReplay.Result result = KnockTraceReplay.replay(mTrace, new KnockDetector(),
+                KnockTraceReplay.DEFAULT_TOLERANCE_NANOS);
+        assertEquals(3, result.getTruePositives());
+        assertEquals(0, result.getFalsePositives());
+        assertEquals(0, result.getFalseNegatives());
+        assertEquals(1.0, result.getPrecision(), 0);
+        assertEquals(1.0, result.getRecall(), 0);
+        assertEquals(40 * 1000000L, result.getMeanLatencyNanos());
+        assertEquals(40 * 1000000L, result.getMaxLatencyNanos());
+    }
+
+    @Test
+    public void testReplayScoresMissedAndSpuriousDetections() {
+        // Too short a tolerance to match the detections with the labels.
+        KnockTraceReplay.Result result = KnockTraceReplay.replay(mTrace, new KnockDetector(),
+                20 * 1000000L);
+        assertEquals(0, result.getTruePositives());
+        assertEquals(3, result.getFalsePositives());
+        assertEquals(3, result.getFalseNegatives());
+        assertEquals(0.0, result.getPrecision(), 0);
+        assertEquals(0.0, result.getRecall(), 0);
+    }
+
+    @Test
+    public void testResetForgetsFirstKnock() {
+        KnockDetector detector = new KnockDetector();
+        List<Long> detections = new ArrayList<Long>();
+        for (int i = 0; i < mTrace.getSampleCount(); i++) {
+            long timestamp = mTrace.getTimestampNanos(i);
+            if (timestamp == 8100000000L) {
+                // As if the accelerometer was off between the two knocks.
+                detector.reset();
+            }
+            if (detector.onSample(timestamp, mTrace.getX(i), mTrace.getY(i), mTrace.getZ(i))) {
+                detections.add(timestamp);
+            }
+        }
+        assertEquals(EXPECTED_DETECTIONS.subList(1, 3), detections);
+    }
+
+    private List<Long> detect(KnockDetector detector) {
+        List<Long> detections = new ArrayList<Long>();
+        for (int i = 0; i < mTrace.getSampleCount(); i++) {
+            long timestamp = mTrace.getTimestampNanos(i);
+            if (detector.onSample(timestamp, mTrace.getX(i), mTrace.getY(i), mTrace.getZ(i))) {
+                detections.add(timestamp);
+            }
+        }
+        return detections;
+    }
+
+    private static SensorTrace readFixture() throws IOException {
+        Reader in = new InputStreamReader(
+                KnockTraceReplayTest.class.getResourceAsStream(FIXTURE), "UTF-8");
+        try {
+            return SensorTrace.read(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.knockfactor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link RunningStatistics}.
+ */
+public class RunningStatisticsTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testWarmUpWeightsValuesEqually() {
+        RunningStatistics statistics = new RunningStatistics(4, 0.5);
+        assertEquals(0, statistics.getVariance(), 0);
+        statistics.add(2);
+        assertEquals(2, statistics.getMean(), DELTA);
+        assertEquals(0, statistics.getVariance(), 0);
+        statistics.add(4);
+        statistics.add(4);
+        assertFalse(statistics.isWarmedUp());
+        statistics.add(6);
+        assertTrue(statistics.isWarmedUp());
+        assertEquals(4, statistics.getCount());
+        assertEquals(4, statistics.getMean(), DELTA);
+        assertEquals(2, statistics.getVariance(), DELTA);
+    }
+
+    @Test
+    public void testMovingAverageAfterWarmUp() {
+        RunningStatistics statistics = new RunningStatistics(2, 0.5);
+        statistics.add(0);
+        statistics.add(0);
+        statistics.add(4);
+        assertEquals(2, statistics.getMean(), DELTA);
+        // (1 - alpha) * (variance + alpha * delta^2)
+        assertEquals(4, statistics.getVariance(), DELTA);
+        assertEquals(2, statistics.getStandardDeviation(), DELTA);
+
+        // Follows a change of the signal.
+        for (int i = 0; i < 100; i++) {
+            statistics.add(10);
+        }
+        assertEquals(10, statistics.getMean(), DELTA);
+        assertEquals(0, statistics.getVariance(), DELTA);
+    }
+
+    @Test
+    public void testRestore() {
+        RunningStatistics statistics = new RunningStatistics(4, 0.5);
+        statistics.restore(2, 3, 1);
+        assertFalse(statistics.isWarmedUp());
+        assertEquals(3, statistics.getMean(), DELTA);
+        assertEquals(1, statistics.getVariance(), DELTA);
+
+        statistics.restore(4, 3, 1);
+        assertTrue(statistics.isWarmedUp());
+        assertEquals(1, statistics.getVariance(), DELTA);
+
+        statistics.reset();
+        assertEquals(0, statistics.getCount());
+        assertEquals(0, statistics.getMean(), 0);
+        assertEquals(0, statistics.getVariance(), 0);
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        try {
+            new RunningStatistics(0, 0.5);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new RunningStatistics(1, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new RunningStatistics(1, 1.5);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new RunningStatistics(1, 0.5).restore(1, 0, -1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
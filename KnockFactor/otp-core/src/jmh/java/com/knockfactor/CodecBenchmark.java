@@ -0,0 +1,78 @@
+package com.knockfactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the Base32 and hexadecimal codecs on secrets typical of provisioned accounts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    /**
+     * 32-character secret as entered by hand, in lower case and grouped with separators.
+     */
+    private static final String ENTERED_SECRET = "jbsw-y3dp-ehpk-3pxp jbsw-y3dp-ehpk-3pxp";
+
+    private final byte[] mDecoded = new byte[32];
+    private String mSecret;
+    private byte[] mBytes;
+    private String mHex;
+
+    @Setup
+    public void setUp() throws Exception {
+        mSecret = ENTERED_SECRET.replace("-", "").replace(" ", "").toUpperCase();
+        mBytes = Base32String.decode(mSecret);
+        mHex = HexEncoding.encode(mBytes);
+    }
+
+    @Benchmark
+    public byte[] base32Decode() throws Base32String.DecodingException {
+        return Base32String.decode(mSecret);
+    }
+
+    @Benchmark
+    public byte[] base32DecodeEntered() throws Base32String.DecodingException {
+        return Base32String.decode(ENTERED_SECRET);
+    }
+
+    @Benchmark
+    public int base32DecodeIntoBuffer() throws Base32String.DecodingException {
+        return Base32String.decode(mSecret, mDecoded, 0);
+    }
+
+    @Benchmark
+    public int base32DecodedLength() throws Base32String.DecodingException {
+        return Base32String.getDecodedLength(ENTERED_SECRET);
+    }
+
+    @Benchmark
+    public String base32Encode() {
+        return Base32String.encode(mBytes);
+    }
+
+    @Benchmark
+    public byte[] hexDecode() {
+        return HexEncoding.decode(mHex);
+    }
+
+    @Benchmark
+    public String hexEncode() {
+        return HexEncoding.encode(mBytes);
+    }
+}
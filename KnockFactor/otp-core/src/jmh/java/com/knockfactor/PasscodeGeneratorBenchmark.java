@@ -0,0 +1,81 @@
+package com.knockfactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Benchmarks passcode generation and verification, both through a JCE {@link Mac} and through
+ * {@link HmacSha1Signer}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class PasscodeGeneratorBenchmark {
+
+    private static final String SECRET = "7777777777777777";
+
+    /**
+     * Number of past and future intervals accepted when verifying a code.
+     */
+    @Param({"0", "1", "4"})
+    public int adjacentIntervals;
+
+    private PasscodeGenerator mMacGenerator;
+    private PasscodeGenerator mSignerGenerator;
+    private final char[] mCode = new char[PasscodeGenerator.MAX_PASSCODE_LENGTH];
+    private long mState;
+    private String mOldestAcceptedCode;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] key = Base32String.decode(SECRET);
+        Mac mac = Mac.getInstance("HMACSHA1");
+        mac.init(new SecretKeySpec(key, ""));
+        mMacGenerator = new PasscodeGenerator(mac);
+        mSignerGenerator = new PasscodeGenerator(new HmacSha1Signer(key));
+        mState = new TotpCounter(PasscodeGenerator.INTERVAL).getValueAtTime(1300000000L);
+        mOldestAcceptedCode = mSignerGenerator.generateResponseCode(mState - adjacentIntervals);
+    }
+
+    @Benchmark
+    public String generateWithMac() throws GeneralSecurityException {
+        return mMacGenerator.generateResponseCode(mState++);
+    }
+
+    @Benchmark
+    public String generateWithSigner() throws GeneralSecurityException {
+        return mSignerGenerator.generateResponseCode(mState++);
+    }
+
+    @Benchmark
+    public int generateIntoBuffer() throws GeneralSecurityException {
+        return mSignerGenerator.generateCode(mState++, mCode, 0);
+    }
+
+    /**
+     * Verifies the code which is only accepted by the last candidate of the window.
+     */
+    @Benchmark
+    public boolean verifyWindow() throws GeneralSecurityException {
+        return mSignerGenerator.verifyTimeoutCode(
+                mOldestAcceptedCode, mState, adjacentIntervals, adjacentIntervals);
+    }
+}
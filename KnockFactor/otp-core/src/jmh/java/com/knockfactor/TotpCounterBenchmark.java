@@ -0,0 +1,38 @@
+package com.knockfactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the conversions between time and TOTP counter values.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class TotpCounterBenchmark {
+
+    private final TotpCounter mCounter = new TotpCounter(PasscodeGenerator.INTERVAL, 7);
+    private long mTime = 1300000000L;
+
+    @Benchmark
+    public long valueAtTime() {
+        return mCounter.getValueAtTime(mTime++);
+    }
+
+    @Benchmark
+    public long valueStartTime() {
+        return mCounter.getValueStartTime(mCounter.getValueAtTime(mTime++));
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2009 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.knockfactor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes arbitrary byte arrays as case-insensitive base-32 strings.
+ * <p/>
+ * The implementation is slightly different than in RFC 4648. During encoding,
+ * padding is not added, and during decoding the last incomplete chunk is not
+ * taken into account. The result is that multiple strings decode to the same
+ * byte array, for example, string of sixteen 7s ("7...7") and seventeen 7s both
+ * decode to the same byte array.
+ * TODO(sarvar): Revisit this encoding and whether this ambiguity needs fixing.
+ *
+ * @author sweis@google.com (Steve Weis)
+ * @author Neal Gafter
+ */
+public class Base32String {
+    // singleton
+
+    private static final Base32String INSTANCE =
+            new Base32String("ABCDEFGHIJKLMNOPQRSTUVWXYZ234567"); // RFC 4648/3548
+
+    static Base32String getInstance() {
+        return INSTANCE;
+    }
+
+    // 32 alpha-numeric characters.
+    private String ALPHABET;
+    private char[] DIGITS;
+    private int MASK;
+    private int SHIFT;
+
+    /**
+     * Value of each ASCII character: its digit value, or one of {@link #INVALID}, {@link #SKIP} or
+     * {@link #PADDING}. Lower case letters decode like their upper case counterparts.
+     */
+    private byte[] DECODE_TABLE;
+
+    private static final byte INVALID = -1;
+    private static final byte SKIP = -2;
+    private static final byte PADDING = -3;
+
+    static final String SEPARATOR = "-";
+
+    protected Base32String(String alphabet) {
+        this.ALPHABET = alphabet;
+        DIGITS = ALPHABET.toCharArray();
+        MASK = DIGITS.length - 1;
+        SHIFT = Integer.numberOfTrailingZeros(DIGITS.length);
+        DECODE_TABLE = new byte[128];
+        Arrays.fill(DECODE_TABLE, INVALID);
+        // Whitespace and separators are ignored anywhere in the input.
+        DECODE_TABLE[SEPARATOR.charAt(0)] = SKIP;
+        DECODE_TABLE[' '] = SKIP;
+        DECODE_TABLE['\t'] = SKIP;
+        DECODE_TABLE['\n'] = SKIP;
+        DECODE_TABLE['\r'] = SKIP;
+        DECODE_TABLE['='] = PADDING;
+        for (int i = 0; i < DIGITS.length; i++) {
+            char c = DIGITS[i];
+            DECODE_TABLE[c] = (byte) i;
+            if (c >= 'A' && c <= 'Z') {
+                DECODE_TABLE[c - 'A' + 'a'] = (byte) i;
+            }
+        }
+    }
+
+    public static byte[] decode(String encoded) throws DecodingException {
+        return getInstance().decodeInternal(encoded);
+    }
+
+    /**
+     * Decodes the provided string into the provided array. Nothing is written to {@code dest} if
+     * the result does not fit.
+     * <p/>
+     * <p>The input is decoded in a single pass if {@code dest} has room for the most bytes it can
+     * decode to ({@code 5/8} of its length). Otherwise, e.g., when separators make an input fit
+     * exactly, it is validated and counted in a first pass.
+     *
+     * @param offset index in {@code dest} at which to store the first decoded byte.
+     * @return number of bytes decoded.
+     * @throws DecodingException if the input is not valid or if {@code dest} is too small.
+     */
+    public static int decode(CharSequence encoded, byte[] dest, int offset)
+            throws DecodingException {
+        return getInstance().decodeChecked(encoded, dest, offset, dest.length);
+    }
+
+    /**
+     * Decodes the provided string into the provided buffer, starting at its current position. The
+     * position is advanced by the number of bytes decoded. Nothing is written to {@code dest} if
+     * the result does not fit.
+     * <p/>
+     * <p>Buffers backed by an array are decoded into like
+     * {@link #decode(CharSequence, byte[], int)}. Other (e.g., direct) buffers are decoded in a
+     * single pass into a temporary array, which is wiped afterwards.
+     *
+     * @return number of bytes decoded.
+     * @throws DecodingException if the input is not valid or if {@code dest} has too few bytes
+     *                           remaining.
+     */
+    public static int decode(CharSequence encoded, ByteBuffer dest) throws DecodingException {
+        Base32String instance = getInstance();
+        int length;
+        if (dest.hasArray()) {
+            int offset = dest.arrayOffset() + dest.position();
+            length = instance.decodeChecked(encoded, dest.array(), offset,
+                    offset + dest.remaining());
+        } else {
+            byte[] decoded = new byte[instance.getMaxDecodedLength(encoded.length())];
+            try {
+                length = instance.decodeInto(encoded, decoded, 0, decoded.length);
+                if (length > dest.remaining()) {
+                    throw new DecodingException("Output buffer too small");
+                }
+                dest.put(decoded, 0, length);
+            } finally {
+                Arrays.fill(decoded, (byte) 0);
+            }
+            return length;
+        }
+        dest.position(dest.position() + length);
+        return length;
+    }
+
+    /**
+     * Validates the provided string and gets the number of bytes it decodes to, without decoding
+     * it.
+     */
+    public static int getDecodedLength(CharSequence encoded) throws DecodingException {
+        return getInstance().decodeInto(encoded, null, 0, 0);
+    }
+
+    /**
+     * Decodes the provided string in a single pass into an array of the most bytes it can decode
+     * to, which is trimmed (and wiped) if separators, whitespace or padding make the result
+     * shorter.
+     */
+    protected byte[] decodeInternal(String encoded) throws DecodingException {
+        byte[] decoded = new byte[getMaxDecodedLength(encoded.length())];
+        int length = decodeInto(encoded, decoded, 0, decoded.length);
+        if (length == decoded.length) {
+            return decoded;
+        }
+        byte[] result = Arrays.copyOf(decoded, length);
+        Arrays.fill(decoded, (byte) 0);
+        return result;
+    }
+
+    /**
+     * Gets the largest number of bytes a string of the provided length decodes to.
+     */
+    private int getMaxDecodedLength(int encodedLength) {
+        return (int) (((long) encodedLength * SHIFT) / 8);
+    }
+
+    /**
+     * Decodes the provided string into {@code dest[offset, limit)}, without writing anything if the
+     * result does not fit.
+     */
+    private int decodeChecked(CharSequence encoded, byte[] dest, int offset, int limit)
+            throws DecodingException {
+        int capacity = limit - offset;
+        if ((getMaxDecodedLength(encoded.length()) > capacity)
+                && (decodeInto(encoded, null, 0, 0) > capacity)) {
+            throw new DecodingException("Output buffer too small");
+        }
+        return decodeInto(encoded, dest, offset, limit);
+    }
+
+    /**
+     * Decodes the provided string in a single pass, skipping whitespace and separators, and
+     * accepting padding only at the end. Callers must check that {@code dest} has room for the
+     * result first: bytes decoded before an invalid character or an overflow are left written.
+     *
+     * @param dest   array into which to decode or {@code null} to only validate and count.
+     * @param offset index in {@code dest} at which to store the first decoded byte.
+     * @param limit  index in {@code dest} past the last byte that may be written.
+     * @return number of bytes decoded.
+     */
+    private int decodeInto(CharSequence encoded, byte[] dest, int offset, int limit)
+            throws DecodingException {
+        int buffer = 0;
+        int next = offset;
+        int bitsLeft = 0;
+        int paddingIndex = -1;
+        for (int i = 0, len = encoded.length(); i < len; i++) {
+            char c = encoded.charAt(i);
+            int value = (c < DECODE_TABLE.length) ? DECODE_TABLE[c] : INVALID;
+            if (value >= 0) {
+                if (paddingIndex >= 0) {
+                    throw new DecodingException("Misplaced padding at index " + paddingIndex);
+                }
+                buffer <<= SHIFT;
+                buffer |= value & MASK;
+                bitsLeft += SHIFT;
+                if (bitsLeft >= 8) {
+                    if (dest != null) {
+                        if (next >= limit) {
+                            throw new DecodingException("Output buffer too small");
+                        }
+                        dest[next] = (byte) (buffer >> (bitsLeft - 8));
+                    }
+                    next++;
+                    bitsLeft -= 8;
+                }
+            } else if (value == PADDING) {
+                // Note: the padding could be used as hint to determine how many bits to decode from
+                // the last incomplete chunk, which is ignored below.
+                if (paddingIndex < 0) {
+                    paddingIndex = i;
+                }
+            } else if (value != SKIP) {
+                throw new DecodingException("Illegal character: " + c);
+            }
+        }
+        // We'll ignore leftover bits for now.
+        //
+        // if (bitsLeft >= SHIFT) {
+        //  throw new DecodingException("Bits left: " + bitsLeft);
+        // }
+        return next - offset;
+    }
+
+    public static String encode(byte[] data) {
+        return getInstance().encodeInternal(data);
+    }
+
+    protected String encodeInternal(byte[] data) {
+        if (data.length == 0) {
+            return "";
+        }
+
+        // SHIFT is the number of bits per output character, so the length of the
+        // output is the length of the input multiplied by 8/SHIFT, rounded up.
+        if (data.length >= (1 << 28)) {
+            // The computation below will fail, so don't do it.
+            throw new IllegalArgumentException();
+        }
+
+        int outputLength = (data.length * 8 + SHIFT - 1) / SHIFT;
+        StringBuilder result = new StringBuilder(outputLength);
+
+        int buffer = data[0];
+        int next = 1;
+        int bitsLeft = 8;
+        while (bitsLeft > 0 || next < data.length) {
+            if (bitsLeft < SHIFT) {
+                if (next < data.length) {
+                    buffer <<= 8;
+                    buffer |= (data[next++] & 0xff);
+                    bitsLeft += 8;
+                } else {
+                    int pad = SHIFT - bitsLeft;
+                    buffer <<= pad;
+                    bitsLeft += pad;
+                }
+            }
+            int index = MASK & (buffer >> (bitsLeft - SHIFT));
+            bitsLeft -= SHIFT;
+            result.append(DIGITS[index]);
+        }
+        return result.toString();
+    }
+
+    @Override
+    // enforce that this class is a singleton
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+
+    public static class DecodingException extends Exception {
+        public DecodingException(String message) {
+            super(message);
+        }
+    }
+}
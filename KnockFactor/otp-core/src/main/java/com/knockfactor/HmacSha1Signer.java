@@ -0,0 +1,191 @@
+package com.knockfactor;
+
+import com.knockfactor.PasscodeGenerator.Signer;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Pure-Java HMAC-SHA1 (RFC 2104) {@link Signer} which precomputes the SHA-1 states reached after
+ * hashing the inner ({@code K XOR ipad}) and outer ({@code K XOR opad}) key blocks.
+ * <p/>
+ * <p>Signing an 8-byte HOTP/TOTP counter thus takes exactly two SHA-1 compressions: one for the
+ * block holding the counter and one for the block holding the inner hash. A {@link javax.crypto.Mac}
+ * re-hashes both key blocks on every invocation, doubling the work.
+ * <p/>
+ * <p>Thread-safety: instances reuse internal buffers and are thus not thread-safe.
+ */
+class HmacSha1Signer implements Signer {
+
+    private static final int BLOCK_LENGTH = 64;
+    private static final int DIGEST_LENGTH = 20;
+
+    private static final int[] INITIAL_STATE =
+            {0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0};
+
+    /**
+     * SHA-1 state after compressing {@code K XOR ipad}.
+     */
+    private final int[] mInnerState = new int[5];
+
+    /**
+     * SHA-1 state after compressing {@code K XOR opad}.
+     */
+    private final int[] mOuterState = new int[5];
+
+    // Working buffers reused across invocations of sign.
+    private final int[] mState = new int[5];
+    private final int[] mSchedule = new int[80];
+    private final byte[] mBlock = new byte[BLOCK_LENGTH];
+
+    /**
+     * @param key HMAC key. The array is not retained and may be wiped by the caller afterwards.
+     */
+    HmacSha1Signer(byte[] key) throws GeneralSecurityException {
+        byte[] keyBlock = new byte[BLOCK_LENGTH];
+        if (key.length > BLOCK_LENGTH) {
+            byte[] keyDigest = MessageDigest.getInstance("SHA-1").digest(key);
+            System.arraycopy(keyDigest, 0, keyBlock, 0, keyDigest.length);
+            Arrays.fill(keyDigest, (byte) 0);
+        } else {
+            System.arraycopy(key, 0, keyBlock, 0, key.length);
+        }
+
+        for (int i = 0; i < BLOCK_LENGTH; i++) {
+            mBlock[i] = (byte) (keyBlock[i] ^ 0x36);
+        }
+        System.arraycopy(INITIAL_STATE, 0, mInnerState, 0, 5);
+        compress(mInnerState, mBlock, 0);
+
+        for (int i = 0; i < BLOCK_LENGTH; i++) {
+            mBlock[i] = (byte) (keyBlock[i] ^ 0x5c);
+        }
+        System.arraycopy(INITIAL_STATE, 0, mOuterState, 0, 5);
+        compress(mOuterState, mBlock, 0);
+
+        Arrays.fill(keyBlock, (byte) 0);
+        Arrays.fill(mBlock, (byte) 0);
+    }
+
+    @Override
+    public byte[] sign(byte[] data) {
+        byte[] result = new byte[DIGEST_LENGTH];
+
+        // Inner hash: H((K XOR ipad) || data), resuming from the precomputed state.
+        System.arraycopy(mInnerState, 0, mState, 0, 5);
+        finish(data, data.length, BLOCK_LENGTH + data.length);
+        writeState(result);
+
+        // Outer hash: H((K XOR opad) || inner hash), resuming from the precomputed state.
+        System.arraycopy(mOuterState, 0, mState, 0, 5);
+        finish(result, DIGEST_LENGTH, BLOCK_LENGTH + DIGEST_LENGTH);
+        writeState(result);
+
+        return result;
+    }
+
+    /**
+     * Wipes the precomputed key-dependent state. This signer must not be used afterwards.
+     */
+    void destroy() {
+        Arrays.fill(mInnerState, 0);
+        Arrays.fill(mOuterState, 0);
+        Arrays.fill(mState, 0);
+        Arrays.fill(mSchedule, 0);
+        Arrays.fill(mBlock, (byte) 0);
+    }
+
+    /**
+     * Hashes the provided message into {@link #mState} and appends the SHA-1 padding.
+     *
+     * @param data        message to hash.
+     * @param length      number of bytes of {@code data} to hash.
+     * @param totalLength total number of bytes hashed, including the already compressed key block.
+     */
+    private void finish(byte[] data, int length, long totalLength) {
+        int offset = 0;
+        for (; length - offset >= BLOCK_LENGTH; offset += BLOCK_LENGTH) {
+            compress(mState, data, offset);
+        }
+
+        int remaining = length - offset;
+        System.arraycopy(data, offset, mBlock, 0, remaining);
+        mBlock[remaining] = (byte) 0x80;
+        if (remaining + 1 > BLOCK_LENGTH - 8) {
+            // No room left for the length -- it goes into an extra block.
+            Arrays.fill(mBlock, remaining + 1, BLOCK_LENGTH, (byte) 0);
+            compress(mState, mBlock, 0);
+            Arrays.fill(mBlock, 0, BLOCK_LENGTH - 8, (byte) 0);
+        } else {
+            Arrays.fill(mBlock, remaining + 1, BLOCK_LENGTH - 8, (byte) 0);
+        }
+        long bitLength = totalLength << 3;
+        for (int i = BLOCK_LENGTH - 1; i >= BLOCK_LENGTH - 8; i--) {
+            mBlock[i] = (byte) bitLength;
+            bitLength >>>= 8;
+        }
+        compress(mState, mBlock, 0);
+    }
+
+    private void writeState(byte[] out) {
+        for (int i = 0; i < 5; i++) {
+            int word = mState[i];
+            out[i * 4] = (byte) (word >>> 24);
+            out[i * 4 + 1] = (byte) (word >>> 16);
+            out[i * 4 + 2] = (byte) (word >>> 8);
+            out[i * 4 + 3] = (byte) word;
+        }
+    }
+
+    /**
+     * SHA-1 compression function (FIPS 180-4) applied to one 64-byte block.
+     */
+    private void compress(int[] state, byte[] block, int offset) {
+        int[] w = mSchedule;
+        for (int i = 0; i < 16; i++) {
+            int j = offset + i * 4;
+            w[i] = ((block[j] & 0xFF) << 24)
+                    | ((block[j + 1] & 0xFF) << 16)
+                    | ((block[j + 2] & 0xFF) << 8)
+                    | (block[j + 3] & 0xFF);
+        }
+        for (int i = 16; i < 80; i++) {
+            w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+        }
+
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        int e = state[4];
+        for (int i = 0; i < 80; i++) {
+            int f;
+            int k;
+            if (i < 20) {
+                f = (b & c) | (~b & d);
+                k = 0x5A827999;
+            } else if (i < 40) {
+                f = b ^ c ^ d;
+                k = 0x6ED9EBA1;
+            } else if (i < 60) {
+                f = (b & c) | (b & d) | (c & d);
+                k = 0x8F1BBCDC;
+            } else {
+                f = b ^ c ^ d;
+                k = 0xCA62C1D6;
+            }
+            int temp = Integer.rotateLeft(a, 5) + f + e + k + w[i];
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = temp;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+    }
+}
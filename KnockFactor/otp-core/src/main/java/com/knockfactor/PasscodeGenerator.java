@@ -16,10 +16,6 @@
 
 package com.knockfactor;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 
@@ -31,16 +27,19 @@ import javax.crypto.Mac;
  * timeout passcodes that are only valid for a short period.
  * <p/>
  * The default passcode is a 6-digit decimal code. The maximum passcode length is 9 digits.
+ * <p/>
+ * Instances are not thread-safe: {@link #generateCode(long)} reuses a per-instance buffer for the
+ * OTP state, and the underlying {@link Mac} is not thread-safe either.
  *
  * @author sweis@google.com (Steve Weis)
  */
 public class PasscodeGenerator {
-    private static final int MAX_PASSCODE_LENGTH = 9;
+    static final int MAX_PASSCODE_LENGTH = 9;
 
     /**
      * Default time interval
      */
-    public static final int INTERVAL = OtpProvider.DEFAULT_INTERVAL;
+    public static final int INTERVAL = 30;
 
     /**
      * Default decimal passcode length
@@ -52,8 +51,21 @@ public class PasscodeGenerator {
      */
     private static final int ADJACENT_INTERVALS = 1;
 
+    /**
+     * Powers of ten indexed by passcode length, used to reduce the truncated hash to a passcode.
+     */
+    private static final int[] DIGITS_POWER =
+            {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000};
+
     private final Signer signer;
     private final int codeLength;
+    private final int codeModulus;
+
+    /**
+     * Scratch buffer holding the big-endian OTP state passed to the {@link Signer}. Reused across
+     * invocations of {@link #generateCode(long)} so that generating a code does not allocate.
+     */
+    private final byte[] stateBytes = new byte[8];
 
     /**
      * Using an interface to allow us to inject different signature
@@ -100,14 +112,72 @@ public class PasscodeGenerator {
         }
         this.signer = signer;
         this.codeLength = passCodeLength;
+        this.codeModulus = DIGITS_POWER[passCodeLength];
+    }
+
+    /**
+     * Gets the number of decimal digits in the passcodes produced by this generator.
+     */
+    public int getCodeLength() {
+        return codeLength;
     }
 
     private String padOutput(int value) {
-        String result = Integer.toString(value);
-        for (int i = result.length(); i < codeLength; i++) {
-            result = "0" + result;
+        char[] result = new char[codeLength];
+        formatCode(value, result, 0);
+        return new String(result);
+    }
+
+    /**
+     * Writes the provided passcode as zero-padded decimal digits into the provided array.
+     *
+     * @param code   passcode as returned by {@link #generateCode(long)}.
+     * @param dest   array into which to write the digits.
+     * @param offset index in {@code dest} of the first (most significant) digit.
+     * @return number of characters written, which is always the code length of this generator.
+     */
+    public int formatCode(int code, char[] dest, int offset) {
+        if (offset < 0 || dest.length - offset < codeLength) {
+            throw new IndexOutOfBoundsException(
+                    "Need " + codeLength + " chars at offset " + offset + " of " + dest.length);
+        }
+        for (int i = offset + codeLength - 1; i >= offset; i--) {
+            dest[i] = (char) ('0' + (code % 10));
+            code /= 10;
         }
-        return result;
+        return codeLength;
+    }
+
+    /**
+     * Generates the passcode for the provided state without allocating any intermediate objects
+     * besides the hash returned by the {@link Signer}. Use {@link #formatCode(int, char[], int)}
+     * to render the result without allocating a {@link String}.
+     *
+     * @param state 8-byte integer value representing internal OTP state.
+     * @return the passcode as a non-negative integer with at most code length digits.
+     * @throws GeneralSecurityException If a JCE exception occur
+     */
+    public int generateCode(long state) throws GeneralSecurityException {
+        byte[] value = stateBytes;
+        for (int i = 7; i >= 0; i--) {
+            value[i] = (byte) state;
+            state >>>= 8;
+        }
+        return truncate(signer.sign(value));
+    }
+
+    /**
+     * Generates the passcode for the provided state and writes it as zero-padded decimal digits
+     * into the provided array.
+     *
+     * @param state  8-byte integer value representing internal OTP state.
+     * @param dest   array into which to write the digits.
+     * @param offset index in {@code dest} of the first (most significant) digit.
+     * @return number of characters written, which is always the code length of this generator.
+     * @throws GeneralSecurityException If a JCE exception occur
+     */
+    public int generateCode(long state, char[] dest, int offset) throws GeneralSecurityException {
+        return formatCode(generateCode(state), dest, offset);
     }
 
     /**
@@ -117,8 +187,7 @@ public class PasscodeGenerator {
      */
     public String generateResponseCode(long state)
             throws GeneralSecurityException {
-        byte[] value = ByteBuffer.allocate(8).putLong(state).array();
-        return generateResponseCode(value);
+        return padOutput(generateCode(state));
     }
 
 
@@ -149,15 +218,18 @@ public class PasscodeGenerator {
      */
     public String generateResponseCode(byte[] challenge)
             throws GeneralSecurityException {
-        byte[] hash = signer.sign(challenge);
+        return padOutput(truncate(signer.sign(challenge)));
+    }
 
-        // Dynamically truncate the hash
+    /**
+     * Dynamically truncates the hash as specified by RFC 4226 and reduces it to a passcode.
+     */
+    private int truncate(byte[] hash) {
         // OffsetBits are the low order bits of the last byte of the hash
         int offset = hash[hash.length - 1] & 0xF;
         // Grab a positive integer value starting at the given offset.
         int truncatedHash = hashToInt(hash, offset) & 0x7FFFFFFF;
-        int pinValue = truncatedHash % (int) Math.pow(10, codeLength);
-        return padOutput(pinValue);
+        return truncatedHash % codeModulus;
     }
 
     /**
@@ -168,16 +240,14 @@ public class PasscodeGenerator {
      * @param start the index into the array to start grabbing bytes
      * @return the integer constructed from the four bytes in the array
      */
-    private int hashToInt(byte[] bytes, int start) {
-        DataInput input = new DataInputStream(
-                new ByteArrayInputStream(bytes, start, bytes.length - start));
-        int val;
-        try {
-            val = input.readInt();
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+    private static int hashToInt(byte[] bytes, int start) {
+        if (bytes.length - start < 4) {
+            throw new IllegalStateException("Hash too short: " + bytes.length);
         }
-        return val;
+        return ((bytes[start] & 0xFF) << 24)
+                | ((bytes[start + 1] & 0xFF) << 16)
+                | ((bytes[start + 2] & 0xFF) << 8)
+                | (bytes[start + 3] & 0xFF);
     }
 
     /**
@@ -0,0 +1,111 @@
+package com.knockfactor;
+
+import com.knockfactor.Base32String.DecodingException;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link Base32String}.
+ */
+public class Base32StringTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(4648);
+        for (int length = 0; length < 40; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String encoded = Base32String.encode(data);
+            assertArrayEquals(data, Base32String.decode(encoded));
+            assertArrayEquals(data, Base32String.decode(encoded.toLowerCase()));
+            assertEquals(length, Base32String.getDecodedLength(encoded));
+        }
+    }
+
+    @Test
+    public void testSkipsSeparatorsAndWhitespace() throws Exception {
+        assertArrayEquals(Base32String.decode("7777777777777777"),
+                Base32String.decode("7777-7777 7777\t7777\n"));
+    }
+
+    @Test
+    public void testIgnoresPaddingAndTrailingBits() throws Exception {
+        assertArrayEquals(Base32String.decode("7777777777777777"),
+                Base32String.decode("77777777777777777"));
+        assertArrayEquals(Base32String.decode("MZXQ"), Base32String.decode("MZXQ===="));
+    }
+
+    @Test(expected = DecodingException.class)
+    public void testRejectsIllegalCharacter() throws Exception {
+        Base32String.decode("MZX1");
+    }
+
+    @Test
+    public void testRejectsCharacterAfterPadding() throws Exception {
+        try {
+            Base32String.decode("MZ==XQ");
+            fail();
+        } catch (DecodingException expected) {
+            assertEquals("Misplaced padding at index 2", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testDecodeIntoArray() throws Exception {
+        byte[] expected = Base32String.decode("7777-7777");
+        byte[] dest = new byte[expected.length + 2];
+        assertEquals(expected.length, Base32String.decode("7777-7777", dest, 2));
+        assertArrayEquals(expected, Arrays.copyOfRange(dest, 2, dest.length));
+    }
+
+    @Test
+    public void testDecodeIntoTooSmallArrayWritesNothing() throws Exception {
+        byte[] dest = new byte[4];
+        try {
+            Base32String.decode("7777777777777777", dest, 0);
+            fail();
+        } catch (DecodingException expected) {
+        }
+        assertArrayEquals(new byte[4], dest);
+    }
+
+    @Test
+    public void testDecodeIntoHeapAndDirectBuffers() throws Exception {
+        byte[] expected = Base32String.decode("7777777777777777");
+        for (ByteBuffer dest : new ByteBuffer[]{
+                ByteBuffer.allocate(expected.length + 1),
+                ByteBuffer.allocateDirect(expected.length + 1)}) {
+            dest.put((byte) 1);
+            assertEquals(expected.length, Base32String.decode("7777777777777777", dest));
+            assertEquals(expected.length + 1, dest.position());
+            dest.position(1);
+            byte[] decoded = new byte[expected.length];
+            dest.get(decoded);
+            assertArrayEquals(expected, decoded);
+        }
+    }
+
+    @Test
+    public void testDecodeIntoTooSmallBuffersWritesNothing() throws Exception {
+        for (ByteBuffer dest : new ByteBuffer[]{
+                ByteBuffer.allocate(4), ByteBuffer.allocateDirect(4)}) {
+            try {
+                Base32String.decode("7777777777777777", dest);
+                fail();
+            } catch (DecodingException expected) {
+            }
+            assertEquals(0, dest.position());
+            byte[] contents = new byte[4];
+            dest.get(contents);
+            assertArrayEquals(new byte[4], contents);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.knockfactor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link HmacSha1Signer}.
+ */
+public class HmacSha1SignerTest {
+
+    @Test
+    public void testRfc2202TestVectors() throws Exception {
+        assertSignature(repeat(0x0b, 20), ascii("Hi There"),
+                "b617318655057264e28bc0b6fb378c8ef146be00");
+        assertSignature(ascii("Jefe"), ascii("what do ya want for nothing?"),
+                "effcdf6ae5eb2fa2d27416d5f184df9c259a7c79");
+        assertSignature(repeat(0xaa, 20), repeat(0xdd, 50),
+                "125d7342b9ac11cd91a39af48aa17b4f63f175d3");
+        assertSignature(HexEncoding.decode("0102030405060708090a0b0c0d0e0f10111213141516171819"),
+                repeat(0xcd, 50),
+                "4c9007f4026250c6bc8414f9bf50c86c2d7235da");
+        assertSignature(repeat(0x0c, 20), ascii("Test With Truncation"),
+                "4c1a03424b55e07fe7f27be1d58bb9324a9a5a04");
+        assertSignature(repeat(0xaa, 80),
+                ascii("Test Using Larger Than Block-Size Key - Hash Key First"),
+                "aa4ae5e15272d00e95705637ce8a3b55ed402112");
+        assertSignature(repeat(0xaa, 80),
+                ascii("Test Using Larger Than Block-Size Key and Larger Than One Block-Size Data"),
+                "e8e99d0f45237d786d6bbaa7965c7808bbff1a91");
+    }
+
+    @Test
+    public void testMatchesJceForRandomKeysAndMessages() throws Exception {
+        Random random = new Random(2202);
+        // Keys and messages on both sides of the 64-byte block, including the lengths at which the
+        // padding spills into an extra block.
+        int[] keyLengths = {0, 1, 10, 20, 63, 64, 65, 100, 128, 200};
+        int[] messageLengths = {0, 1, 8, 20, 55, 56, 63, 64, 65, 119, 120, 128, 1000};
+        for (int keyLength : keyLengths) {
+            byte[] key = new byte[keyLength];
+            random.nextBytes(key);
+            for (int messageLength : messageLengths) {
+                byte[] message = new byte[messageLength];
+                random.nextBytes(message);
+                assertArrayEquals("key length " + keyLength + ", message length " + messageLength,
+                        jceSign(key, message), new HmacSha1Signer(key).sign(message));
+            }
+        }
+    }
+
+    @Test
+    public void testSignerIsReusable() throws Exception {
+        Random random = new Random(2104);
+        byte[] key = new byte[20];
+        random.nextBytes(key);
+        HmacSha1Signer signer = new HmacSha1Signer(key);
+        for (int i = 0; i < 100; i++) {
+            byte[] message = new byte[random.nextInt(150)];
+            random.nextBytes(message);
+            assertArrayEquals(jceSign(key, message), signer.sign(message));
+        }
+    }
+
+    @Test
+    public void testKeyIsNotRetained() throws Exception {
+        byte[] key = repeat(0x0b, 20);
+        HmacSha1Signer signer = new HmacSha1Signer(key);
+        Arrays.fill(key, (byte) 0);
+        assertEquals("b617318655057264e28bc0b6fb378c8ef146be00",
+                HexEncoding.encode(signer.sign(ascii("Hi There"))));
+    }
+
+    private static void assertSignature(byte[] key, byte[] data, String expectedHex)
+            throws Exception {
+        assertEquals(expectedHex, HexEncoding.encode(new HmacSha1Signer(key).sign(data)));
+        assertEquals(expectedHex, HexEncoding.encode(jceSign(key, data)));
+    }
+
+    private static byte[] jceSign(byte[] key, byte[] data) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA1");
+        // SecretKeySpec rejects empty keys, which HMAC pads with zeros like any short key.
+        mac.init(new SecretKeySpec((key.length == 0) ? new byte[1] : key, "RAW"));
+        return mac.doFinal(data);
+    }
+
+    private static byte[] repeat(int value, int count) {
+        byte[] result = new byte[count];
+        Arrays.fill(result, (byte) value);
+        return result;
+    }
+
+    private static byte[] ascii(String value) throws Exception {
+        return value.getBytes("US-ASCII");
+    }
+}
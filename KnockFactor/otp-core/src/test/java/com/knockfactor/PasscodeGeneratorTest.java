@@ -0,0 +1,129 @@
+package com.knockfactor;
+
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link PasscodeGenerator}, checked against the test values of RFC 4226,
+ * Appendix D.
+ */
+public class PasscodeGeneratorTest {
+
+    private static final byte[] SECRET = ascii("12345678901234567890");
+
+    /**
+     * HOTP values for the counters 0 to 9.
+     */
+    private static final String[] HOTP_VALUES = {
+            "755224", "287082", "359152", "969429", "338314",
+            "254676", "287922", "162583", "399871", "520489"};
+
+    /**
+     * Truncated values (before the decimal reduction) for the counters 0 to 9.
+     */
+    private static final int[] TRUNCATED_VALUES = {
+            1284755224, 1094287082, 137359152, 1726969429, 1640338314,
+            868254676, 1918287922, 82162583, 673399871, 645520489};
+
+    @Test
+    public void testGenerateCode() throws Exception {
+        PasscodeGenerator generator = new PasscodeGenerator(newMac());
+        for (int counter = 0; counter < HOTP_VALUES.length; counter++) {
+            assertEquals(Integer.parseInt(HOTP_VALUES[counter]), generator.generateCode(counter));
+        }
+    }
+
+    @Test
+    public void testGenerateCodeIntoArray() throws Exception {
+        PasscodeGenerator generator = new PasscodeGenerator(newMac());
+        char[] dest = new char[8];
+        for (int counter = 0; counter < HOTP_VALUES.length; counter++) {
+            dest[0] = '<';
+            dest[7] = '>';
+            assertEquals(6, generator.generateCode(counter, dest, 1));
+            assertEquals("<" + HOTP_VALUES[counter] + ">", new String(dest));
+        }
+    }
+
+    @Test
+    public void testGenerateResponseCode() throws Exception {
+        PasscodeGenerator generator = new PasscodeGenerator(newMac());
+        for (int counter = 0; counter < HOTP_VALUES.length; counter++) {
+            assertEquals(HOTP_VALUES[counter], generator.generateResponseCode(counter));
+        }
+    }
+
+    @Test
+    public void testHmacSha1SignerMatchesMac() throws Exception {
+        PasscodeGenerator generator = new PasscodeGenerator(new HmacSha1Signer(SECRET));
+        for (int counter = 0; counter < HOTP_VALUES.length; counter++) {
+            assertEquals(HOTP_VALUES[counter], generator.generateResponseCode(counter));
+        }
+    }
+
+    @Test
+    public void testLongestCodes() throws Exception {
+        PasscodeGenerator generator =
+                new PasscodeGenerator(newMac(), PasscodeGenerator.MAX_PASSCODE_LENGTH);
+        for (int counter = 0; counter < TRUNCATED_VALUES.length; counter++) {
+            assertEquals(TRUNCATED_VALUES[counter] % 1000000000, generator.generateCode(counter));
+        }
+        // Codes with leading zeros are padded.
+        assertEquals("094287082", generator.generateResponseCode(1));
+        assertEquals("082162583", generator.generateResponseCode(7));
+    }
+
+    @Test
+    public void testFormatCodePadsWithZeros() {
+        PasscodeGenerator generator = new PasscodeGenerator(newMac());
+        char[] dest = new char[6];
+        assertEquals(6, generator.formatCode(42, dest, 0));
+        assertEquals("000042", new String(dest));
+        generator.formatCode(0, dest, 0);
+        assertEquals("000000", new String(dest));
+        generator.formatCode(999999, dest, 0);
+        assertEquals("999999", new String(dest));
+    }
+
+    @Test
+    public void testFormatCodeIntoShortArray() {
+        PasscodeGenerator generator = new PasscodeGenerator(newMac());
+        assertFormatCodeFails(generator, new char[5], 0);
+        assertFormatCodeFails(generator, new char[6], 1);
+        assertFormatCodeFails(generator, new char[6], -1);
+    }
+
+    private static void assertFormatCodeFails(PasscodeGenerator generator, char[] dest,
+                                              int offset) {
+        try {
+            generator.formatCode(123456, dest, offset);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        // Nothing is written.
+        assertEquals(new String(new char[dest.length]), new String(dest));
+    }
+
+    private static Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance("HMACSHA1");
+            mac.init(new SecretKeySpec(SECRET, ""));
+            return mac;
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] result = new byte[s.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) s.charAt(i);
+        }
+        return result;
+    }
+}
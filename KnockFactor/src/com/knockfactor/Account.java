@@ -0,0 +1,62 @@
+package com.knockfactor;
+
+import com.knockfactor.AccountDb.OtpType;
+
+/**
+ * Immutable snapshot of one row of {@link AccountDb}, loaded with a single query.
+ * <p/>
+ * <p>Thread-safety: instances of this class are immutable and are thus thread-safe.
+ */
+public final class Account {
+
+    private final String mName;
+    private final String mSecret;
+    private final OtpType mType;
+    private final Integer mCounter;
+    private final boolean mGoogleProvider;
+
+    /**
+     * @param name           account name (email address or other unique identifier).
+     * @param secret         the secret key as base32 encoded string.
+     * @param type           hotp vs totp.
+     * @param counter        HOTP counter (only important for the hotp type).
+     * @param googleProvider whether the account is explicitly marked as a Google account.
+     */
+    Account(String name, String secret, OtpType type, Integer counter, boolean googleProvider) {
+        mName = name;
+        mSecret = secret;
+        mType = type;
+        mCounter = counter;
+        mGoogleProvider = googleProvider;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getSecret() {
+        return mSecret;
+    }
+
+    public OtpType getType() {
+        return mType;
+    }
+
+    public Integer getCounter() {
+        return mCounter;
+    }
+
+    /**
+     * Whether the account is marked as a Google account in the database. See
+     * {@link AccountDb#isGoogleAccount(String)} for the complete check.
+     */
+    boolean isGoogleProvider() {
+        return mGoogleProvider;
+    }
+
+    @Override
+    public String toString() {
+        // Deliberately excludes the secret.
+        return "Account{" + mName + ", " + mType + ", counter=" + mCounter + "}";
+    }
+}
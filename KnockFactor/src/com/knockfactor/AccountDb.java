@@ -23,6 +23,7 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Process;
 import android.util.Log;
 
@@ -30,11 +31,13 @@ import com.knockfactor.Base32String.DecodingException;
 import com.knockfactor.PasscodeGenerator.Signer;
 
 import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -66,9 +69,34 @@ public class AccountDb {
     private static final int PROVIDER_UNKNOWN = 0;
     private static final int PROVIDER_GOOGLE = 1;
 
+    /**
+     * Maximum number of accounts for which keyed signers are cached.
+     */
+    private static final int SIGNER_CACHE_SIZE = 32;
+
     // @VisibleForTesting
     SQLiteDatabase mDatabase;
 
+    /**
+     * Keyed signers of recently used accounts. Entries are invalidated whenever an account is
+     * modified or removed through this database.
+     */
+    private final SignerCache mSignerCache = new SignerCache(SIGNER_CACHE_SIZE);
+
+    /**
+     * Number of modifications made to the accounts through this database.
+     */
+    private final AtomicInteger mModificationCount = new AtomicInteger();
+
+    /**
+     * Statements used by {@link #incrementCounter(String)}, compiled on first use.
+     *
+     * @GuardedBy {@link #mCounterLock}
+     */
+    private SQLiteStatement mIncrementCounterStatement;
+    private SQLiteStatement mSelectCounterStatement;
+    private final Object mCounterLock = new Object();
+
     private static final String LOCAL_TAG = "GoogleAuthenticator.AccountDb";
 
     /**
@@ -174,6 +202,17 @@ public class AccountDb {
      * Closes this database and releases any system resources held.
      */
     public void close() {
+        mSignerCache.clear();
+        synchronized (mCounterLock) {
+            if (mIncrementCounterStatement != null) {
+                mIncrementCounterStatement.close();
+                mIncrementCounterStatement = null;
+            }
+            if (mSelectCounterStatement != null) {
+                mSelectCounterStatement.close();
+                mSelectCounterStatement = null;
+            }
+        }
         mDatabase.close();
     }
 
@@ -211,6 +250,8 @@ public class AccountDb {
      */
     public boolean deleteAllData() {
         mDatabase.delete(AccountDb.TABLE_NAME, null, null);
+        mSignerCache.clear();
+        mModificationCount.incrementAndGet();
         return true;
     }
 
@@ -224,11 +265,21 @@ public class AccountDb {
     }
 
     public String getSecret(String email) {
+        Account account = loadAccount(email);
+        return (account != null) ? account.getSecret() : null;
+    }
+
+    /**
+     * Loads all columns of the account with a single query.
+     *
+     * @return the account or {@code null} if the account does not exist.
+     */
+    public Account loadAccount(String email) {
         Cursor cursor = getAccount(email);
         try {
             if (!cursorIsEmpty(cursor)) {
                 cursor.moveToFirst();
-                return cursor.getString(cursor.getColumnIndex(SECRET_COLUMN));
+                return readAccount(cursor);
             }
         } finally {
             tryCloseCursor(cursor);
@@ -236,11 +287,37 @@ public class AccountDb {
         return null;
     }
 
+    /**
+     * Loads all accounts with a single query, in the same order as {@link #getNames(Collection)}.
+     */
+    public List<Account> loadAll() {
+        Cursor cursor = getNames();
+        try {
+            if (cursorIsEmpty(cursor)) {
+                return new ArrayList<Account>(0);
+            }
+            List<Account> result = new ArrayList<Account>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                result.add(readAccount(cursor));
+            }
+            return result;
+        } finally {
+            tryCloseCursor(cursor);
+        }
+    }
+
+    private static Account readAccount(Cursor cursor) {
+        return new Account(
+                cursor.getString(cursor.getColumnIndex(EMAIL_COLUMN)),
+                cursor.getString(cursor.getColumnIndex(SECRET_COLUMN)),
+                OtpType.getEnum(cursor.getInt(cursor.getColumnIndex(TYPE_COLUMN))),
+                cursor.getInt(cursor.getColumnIndex(COUNTER_COLUMN)),
+                cursor.getInt(cursor.getColumnIndex(PROVIDER_COLUMN)) == PROVIDER_GOOGLE);
+    }
+
     static Signer getSigningOracle(String secret) {
         try {
-            byte[] keyBytes = decodeKey(secret);
-            final Mac mac = Mac.getInstance("HMACSHA1");
-            mac.init(new SecretKeySpec(keyBytes, ""));
+            final Mac mac = getKeyedMac(secret);
 
             // Create a signer object out of the standard Java MAC implementation.
             return new Signer() {
@@ -251,52 +328,93 @@ public class AccountDb {
             };
         } catch (DecodingException error) {
             Log.e(LOCAL_TAG, error.getMessage());
-        } catch (NoSuchAlgorithmException error) {
-            Log.e(LOCAL_TAG, error.getMessage());
-        } catch (InvalidKeyException error) {
+        } catch (GeneralSecurityException error) {
             Log.e(LOCAL_TAG, error.getMessage());
         }
 
         return null;
     }
 
+    /**
+     * Creates an HMAC-SHA1 {@link Mac} keyed with the provided secret. The decoded key bytes are
+     * wiped once the {@link Mac} has been initialized.
+     *
+     * @param secret the secret key as base32 encoded string.
+     */
+    static Mac getKeyedMac(String secret) throws DecodingException, GeneralSecurityException {
+        byte[] keyBytes = decodeKey(secret);
+        try {
+            Mac mac = Mac.getInstance("HMACSHA1");
+            mac.init(new SecretKeySpec(keyBytes, ""));
+            return mac;
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Gets the number of modifications (updates, type changes and deletions) made to the accounts
+     * through this database. Callers caching data derived from the accounts can compare this value
+     * to detect that the data may be stale. HOTP counter increments are not counted.
+     */
+    public int getModificationCount() {
+        return mModificationCount.get();
+    }
+
+    /**
+     * Gets the cache of keyed signers for the accounts in this database.
+     */
+    SignerCache getSignerCache() {
+        return mSignerCache;
+    }
+
     private static byte[] decodeKey(String secret) throws DecodingException {
         return Base32String.decode(secret);
     }
 
     public Integer getCounter(String email) {
-        Cursor cursor = getAccount(email);
-        try {
-            if (!cursorIsEmpty(cursor)) {
-                cursor.moveToFirst();
-                return cursor.getInt(cursor.getColumnIndex(COUNTER_COLUMN));
-            }
-        } finally {
-            tryCloseCursor(cursor);
-        }
-        return null;
+        Account account = loadAccount(email);
+        return (account != null) ? account.getCounter() : null;
     }
 
-    void incrementCounter(String email) {
-        ContentValues values = new ContentValues();
-        values.put(EMAIL_COLUMN, email);
-        Integer counter = getCounter(email);
-        values.put(COUNTER_COLUMN, counter + 1);
-        mDatabase.update(TABLE_NAME, values, whereClause(email), null);
-    }
+    /**
+     * Atomically increments the HOTP counter of the account. Concurrent invocations for the same
+     * account observe distinct, consecutive counter values.
+     *
+     * @return the new value of the counter or {@code null} if the account does not exist.
+     */
+    Integer incrementCounter(String email) {
+        synchronized (mCounterLock) {
+            if (mIncrementCounterStatement == null) {
+                mIncrementCounterStatement = mDatabase.compileStatement(String.format(
+                        "UPDATE %s SET %s = %s + 1 WHERE %s = ?",
+                        TABLE_NAME, COUNTER_COLUMN, COUNTER_COLUMN, EMAIL_COLUMN));
+                mSelectCounterStatement = mDatabase.compileStatement(String.format(
+                        "SELECT %s FROM %s WHERE %s = ?",
+                        COUNTER_COLUMN, TABLE_NAME, EMAIL_COLUMN));
+            }
 
-    public OtpType getType(String email) {
-        Cursor cursor = getAccount(email);
-        try {
-            if (!cursorIsEmpty(cursor)) {
-                cursor.moveToFirst();
-                Integer value = cursor.getInt(cursor.getColumnIndex(TYPE_COLUMN));
-                return OtpType.getEnum(value);
+            mDatabase.beginTransaction();
+            try {
+                mIncrementCounterStatement.bindString(1, email);
+                if (mIncrementCounterStatement.executeUpdateDelete() == 0) {
+                    return null;
+                }
+                mSelectCounterStatement.bindString(1, email);
+                int counter = (int) mSelectCounterStatement.simpleQueryForLong();
+                mDatabase.setTransactionSuccessful();
+                return counter;
+            } finally {
+                mDatabase.endTransaction();
+                mIncrementCounterStatement.clearBindings();
+                mSelectCounterStatement.clearBindings();
             }
-        } finally {
-            tryCloseCursor(cursor);
         }
-        return null;
+    }
+
+    public OtpType getType(String email) {
+        Account account = loadAccount(email);
+        return (account != null) ? account.getType() : null;
     }
 
     void setType(String email, OtpType type) {
@@ -304,28 +422,25 @@ public class AccountDb {
         values.put(EMAIL_COLUMN, email);
         values.put(TYPE_COLUMN, type.value);
         mDatabase.update(TABLE_NAME, values, whereClause(email), null);
+        mSignerCache.invalidate(email);
+        mModificationCount.incrementAndGet();
     }
 
     public boolean isGoogleAccount(String email) {
-        Cursor cursor = getAccount(email);
-        try {
-            if (!cursorIsEmpty(cursor)) {
-                cursor.moveToFirst();
-                if (cursor.getInt(cursor.getColumnIndex(PROVIDER_COLUMN)) == PROVIDER_GOOGLE) {
-                    // The account is marked as source: Google
-                    return true;
-                }
-                // The account is from an unknown source. Could be a Google account added by scanning
-                // a QR code or by manually entering a key
-                String emailLowerCase = email.toLowerCase(Locale.US);
-                return (emailLowerCase.endsWith("@gmail.com"))
-                        || (emailLowerCase.endsWith("@google.com"))
-                        || (email.equals(GOOGLE_CORP_ACCOUNT_NAME));
-            }
-        } finally {
-            tryCloseCursor(cursor);
+        Account account = loadAccount(email);
+        if (account == null) {
+            return false;
+        }
+        if (account.isGoogleProvider()) {
+            // The account is marked as source: Google
+            return true;
         }
-        return false;
+        // The account is from an unknown source. Could be a Google account added by scanning
+        // a QR code or by manually entering a key
+        String emailLowerCase = email.toLowerCase(Locale.US);
+        return (emailLowerCase.endsWith("@gmail.com"))
+                || (emailLowerCase.endsWith("@google.com"))
+                || (email.equals(GOOGLE_CORP_ACCOUNT_NAME));
     }
 
     /**
@@ -343,6 +458,8 @@ public class AccountDb {
 
     public void delete(String email) {
         mDatabase.delete(TABLE_NAME, whereClause(email), null);
+        mSignerCache.invalidate(email);
+        mModificationCount.incrementAndGet();
     }
 
     /**
@@ -387,6 +504,9 @@ public class AccountDb {
         if (updated == 0) {
             mDatabase.insert(TABLE_NAME, null, values);
         }
+        mSignerCache.invalidate(oldEmail);
+        mSignerCache.invalidate(email);
+        mModificationCount.incrementAndGet();
     }
 
     private Cursor getNames() {
@@ -0,0 +1,278 @@
+package com.knockfactor;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Index mapping the hostnames (or site keywords) sent by a desktop to the account whose code
+ * should be returned.
+ * <p/>
+ * <p>Each account contributes keys derived from its name:
+ * <ul>
+ * <li>the whole name, e.g. {@code "Dropbox:jane@example.com"},</li>
+ * <li>the issuer, i.e., the part before the first {@code ':'}, e.g. {@code "dropbox"}, or a
+ * trailing issuer in parentheses, e.g. {@code "dropbox"} for
+ * {@code "jane@example.com (Dropbox)"},</li>
+ * <li>the domain of its email address, e.g. {@code "example.com"}, with Google accounts also
+ * keyed by {@code "google.com"},</li>
+ * <li>the host before the first {@code '/'}, e.g. {@code "github.com"} (and the issuer
+ * {@code "github"}) for {@code "github.com/jdoe"}.</li>
+ * </ul>
+ * Domains are stored in a trie of labels in reverse order ({@code com -> example}), so that a
+ * hostname is matched by its longest known domain suffix. A query is resolved by, in order:
+ * rewriting it with the first matching {@link #HOSTNAME_RULES hostname rule}, an exact match of
+ * the whole name, the longest domain suffix, and the first of its labels (from left to right)
+ * which is an issuer. When a key is shared by several accounts, the account with the
+ * lexicographically smallest name wins, so the result does not depend on the order of accounts.
+ * <p/>
+ * <p>A query which hits none of the keys falls back to the account with the lexicographically
+ * smallest name containing the query, ignoring case, e.g. {@code "jdoe"} for
+ * {@code "jdoe@gmail.com"}.
+ * <p/>
+ * <p>The cost of a lookup which hits a key depends on the length of the query, not on the number
+ * of accounts. Only the fallback scans the names.
+ * <p/>
+ * <p>Thread-safety: instances are immutable once built and are thus thread-safe.
+ */
+final class AccountMatcher {
+
+    /**
+     * Hostnames (and their subdomains) whose accounts are keyed by a different domain. Each rule
+     * is a pair of hostname suffix and replacement.
+     */
+    // @VisibleForTesting
+    static final String[][] HOSTNAME_RULES = {
+            {"mail.google", "google.com"},
+            {"google.com", "google.com"},
+            {"gmail.com", "google.com"},
+            {"googlemail.com", "google.com"},
+            {"youtube.com", "google.com"},
+    };
+
+    private static final String GOOGLE_DOMAIN = "google.com";
+
+    private final String[] mNames;
+
+    /**
+     * Lower-case names, searched by the fallback.
+     */
+    private final String[] mLowerCaseNames;
+    private final HashMap<String, Integer> mByName = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> mByIssuer = new HashMap<String, Integer>();
+    private final Node mDomains = new Node();
+
+    /**
+     * @param names names of the accounts. Lookups return indices into this array. {@code null}
+     *              elements are skipped.
+     */
+    AccountMatcher(String[] names) {
+        mNames = names.clone();
+        mLowerCaseNames = new String[mNames.length];
+        for (int i = 0; i < mNames.length; i++) {
+            if (mNames[i] == null) {
+                continue;
+            }
+            String name = mNames[i].toLowerCase(Locale.US);
+            mLowerCaseNames[i] = name;
+            put(mByName, name, i);
+
+            // "jane@example.com (Dropbox)"
+            if (name.endsWith(")")) {
+                int issuerStart = name.lastIndexOf('(');
+                if (issuerStart >= 0) {
+                    putIssuer(name.substring(issuerStart + 1, name.length() - 1).trim(), i);
+                    name = name.substring(0, issuerStart).trim();
+                }
+            }
+
+            // "Dropbox:jane@example.com"
+            int issuerEnd = name.indexOf(':');
+            if (issuerEnd > 0) {
+                put(mByIssuer, name.substring(0, issuerEnd).trim(), i);
+            }
+
+            // "github.com/jdoe"
+            int hostEnd = name.indexOf('/');
+            if (hostEnd > 0) {
+                putIssuer(name.substring(0, hostEnd).trim(), i);
+            }
+
+            int domainStart = name.lastIndexOf('@');
+            if (domainStart >= 0) {
+                String domain = name.substring(domainStart + 1).trim();
+                if (domain.length() > 0) {
+                    putDomain(domain, i);
+                    if (isGoogleDomain(domain)) {
+                        putDomain(GOOGLE_DOMAIN, i);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the account matching the provided hostname or keyword.
+     *
+     * @return index of the account or {@code -1} if no account matches.
+     */
+    int match(String query) {
+        String lowerCaseQuery = query.trim().toLowerCase(Locale.US);
+        if (lowerCaseQuery.length() == 0) {
+            return -1;
+        }
+        String host = rewrite(lowerCaseQuery);
+
+        Integer byName = mByName.get(host);
+        if (byName != null) {
+            return byName;
+        }
+
+        int byDomain = matchDomain(host);
+        if (byDomain >= 0) {
+            return byDomain;
+        }
+
+        int labelStart = 0;
+        while (labelStart <= host.length()) {
+            int labelEnd = host.indexOf('.', labelStart);
+            if (labelEnd < 0) {
+                labelEnd = host.length();
+            }
+            Integer byIssuer = mByIssuer.get(host.substring(labelStart, labelEnd));
+            if (byIssuer != null) {
+                return byIssuer;
+            }
+            labelStart = labelEnd + 1;
+        }
+        return matchSubstring(lowerCaseQuery);
+    }
+
+    /**
+     * Gets the name of the account at the provided index.
+     */
+    String getName(int index) {
+        return mNames[index];
+    }
+
+    /**
+     * Gets the account with the lexicographically smallest name containing the query.
+     */
+    private int matchSubstring(String query) {
+        int result = -1;
+        for (int i = 0; i < mLowerCaseNames.length; i++) {
+            if ((mLowerCaseNames[i] != null) && (mLowerCaseNames[i].contains(query))) {
+                result = preferred(result, i);
+            }
+        }
+        return result;
+    }
+
+    private static String rewrite(String host) {
+        for (String[] rule : HOSTNAME_RULES) {
+            if (isDomainOrSubdomain(host, rule[0])) {
+                return rule[1];
+            }
+        }
+        return host;
+    }
+
+    /**
+     * Walks the trie from the last label of the hostname and returns the account of the deepest
+     * node reached, i.e., of the longest matching domain suffix.
+     */
+    private int matchDomain(String host) {
+        Node node = mDomains;
+        int result = -1;
+        int labelEnd = host.length();
+        while (labelEnd >= 0) {
+            int labelStart = host.lastIndexOf('.', labelEnd - 1) + 1;
+            node = (node.mChildren != null)
+                    ? node.mChildren.get(host.substring(labelStart, labelEnd)) : null;
+            if (node == null) {
+                break;
+            }
+            if (node.mAccount >= 0) {
+                result = node.mAccount;
+            }
+            labelEnd = labelStart - 1;
+        }
+        return result;
+    }
+
+    /**
+     * Keys an account by its issuer. An issuer which looks like a hostname, e.g.
+     * {@code "github.com"}, is keyed as a domain instead, and its first label as the issuer.
+     */
+    private void putIssuer(String issuer, int account) {
+        if (issuer.length() == 0) {
+            return;
+        }
+        int labelEnd = issuer.indexOf('.');
+        if (labelEnd < 0) {
+            put(mByIssuer, issuer, account);
+            return;
+        }
+        putDomain(issuer, account);
+        if (labelEnd > 0) {
+            put(mByIssuer, issuer.substring(0, labelEnd), account);
+        }
+    }
+
+    private void putDomain(String domain, int account) {
+        Node node = mDomains;
+        int labelEnd = domain.length();
+        while (labelEnd >= 0) {
+            int labelStart = domain.lastIndexOf('.', labelEnd - 1) + 1;
+            String label = domain.substring(labelStart, labelEnd);
+            if (node.mChildren == null) {
+                node.mChildren = new HashMap<String, Node>();
+            }
+            Node child = node.mChildren.get(label);
+            if (child == null) {
+                child = new Node();
+                node.mChildren.put(label, child);
+            }
+            node = child;
+            labelEnd = labelStart - 1;
+        }
+        node.mAccount = preferred(node.mAccount, account);
+    }
+
+    private void put(HashMap<String, Integer> map, String key, int account) {
+        Integer existing = map.get(key);
+        map.put(key, preferred((existing != null) ? existing : -1, account));
+    }
+
+    /**
+     * Resolves a key shared by two accounts in favor of the lexicographically smaller name.
+     */
+    private int preferred(int existing, int account) {
+        if ((existing < 0) || (mNames[account].compareTo(mNames[existing]) < 0)) {
+            return account;
+        }
+        return existing;
+    }
+
+    private static boolean isGoogleDomain(String domain) {
+        return domain.equals("gmail.com") || domain.equals("googlemail.com")
+                || domain.equals(GOOGLE_DOMAIN);
+    }
+
+    private static boolean isDomainOrSubdomain(String host, String domain) {
+        return host.equals(domain)
+                || (host.endsWith(domain)
+                        && (host.charAt(host.length() - domain.length() - 1) == '.'));
+    }
+
+    /**
+     * Node of the reversed-domain trie.
+     */
+    private static class Node {
+        private HashMap<String, Node> mChildren;
+
+        /**
+         * Account keyed by the domain ending at this node or {@code -1} if there is none.
+         */
+        private int mAccount = -1;
+    }
+}
@@ -24,20 +24,23 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnDismissListener;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.graphics.Color;
-import android.hardware.SensorEvent;
-import android.hardware.SensorManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.text.ClipboardManager;
 import android.text.Html;
@@ -52,7 +55,9 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.view.accessibility.AccessibilityEvent;
+import android.view.animation.AnimationUtils;
 import android.webkit.WebView;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
@@ -69,15 +74,24 @@ import com.knockfactor.testability.DependencyInjector;
 import com.knockfactor.testability.TestableActivity;
 import com.knockfactor2.R;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The main activity that displays usernames and codes
@@ -95,11 +109,6 @@ public class AuthenticatorActivity extends TestableActivity {
     private static final String LOCAL_TAG = "AuthenticatorActivity";
     private static final long VIBRATE_DURATION = 200L;
 
-    /**
-     * Frequency (milliseconds) with which TOTP countdown indicators are updated.
-     */
-    private static final long TOTP_COUNTDOWN_REFRESH_PERIOD = 100;
-
     /**
      * Minimum amount of time (milliseconds) that has to elapse from the moment a HOTP code is
      * generated for an account until the moment the next code can be generated for the account.
@@ -113,6 +122,30 @@ public class AuthenticatorActivity extends TestableActivity {
      */
     private static final long HOTP_DISPLAY_TIMEOUT = 2 * 60 * 1000;
 
+    /**
+     * Number of rows above and below the visible rows of the account list whose codes are computed
+     * ahead of being scrolled into view.
+     */
+    private static final int PIN_LIST_PREFETCH_MARGIN = 5;
+
+    /**
+     * Number of rows assumed to be visible before the account list has been laid out.
+     */
+    private static final int PIN_LIST_INITIAL_ROW_COUNT = 10;
+
+    /**
+     * Directory (under the files directory) to which debug builds record sensor traces.
+     */
+    private static final String KNOCK_TRACE_DIRECTORY = "knock-traces";
+
+    /**
+     * Boolean extra which makes debug builds record sensor traces while this activity exists, e.g.
+     * {@code adb shell am start -n com.knockfactor/.AuthenticatorActivity
+     * --ez com.knockfactor.extras.record_knock_trace true}.
+     */
+    // @VisibleForTesting
+    static final String EXTRA_RECORD_KNOCK_TRACE = "com.knockfactor.extras.record_knock_trace";
+
     // @VisibleForTesting
     static final int DIALOG_ID_UNINSTALL_OLD_APP = 12;
 
@@ -144,6 +177,16 @@ public class AuthenticatorActivity extends TestableActivity {
      */
     private TotpClock mTotpClock;
 
+    /**
+     * Precomputer of the next interval's TOTP codes or {@code null} if codes are not cached.
+     */
+    private TotpCodePrecomputer mTotpCodePrecomputer;
+
+    /**
+     * Loads the accounts and computes their codes off the UI thread.
+     */
+    private PinListLoader mPinListLoader;
+
     /**
      * Task that periodically notifies this activity about the amount of time remaining until
      * the TOTP codes refresh. The task also notifies this activity when TOTP codes refresh.
@@ -151,11 +194,42 @@ public class AuthenticatorActivity extends TestableActivity {
     private TotpCountdownTask mTotpCountdownTask;
 
     /**
-     * Phase of TOTP countdown indicators. The phase is in {@code [0, 1]} with {@code 1} meaning
-     * full time step remaining until the code refreshes, and {@code 0} meaning the code is refreshing
-     * right now.
+     * Restarts the countdown (and thus refreshes the TOTP codes) when the clock's time correction
+     * changes while this activity is visible.
+     */
+    private final TotpClock.Listener mTimeCorrectionListener = new TotpClock.Listener() {
+        @Override
+        public void onTimeCorrectionChanged(TotpClock clock, int minutes) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if ((mTotpCountdownTask != null) && (!isFinishing())) {
+                        updateCodesAndStartTotpCountdownTask();
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * Countdown till the TOTP codes refresh, shared by the countdown indicators of all rows.
+     */
+    private final CountdownPhaseSource mTotpCountdownPhaseSource = new CountdownPhaseSource();
+
+    /**
+     * Stops the TOTP countdown while the screen is off and restarts it once the screen is on.
      */
-    private double mTotpCountdownPhase;
+    private final BroadcastReceiver mScreenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
+                stopTotpCountdownTask();
+            } else if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+                // The countdown may have been delayed while the device was asleep.
+                updateCodesAndStartTotpCountdownTask();
+            }
+        }
+    };
     private AccountDb mAccountDb;
     private OtpSource mOtpProvider;
 
@@ -220,15 +294,26 @@ public class AuthenticatorActivity extends TestableActivity {
 
     private static final int MESSAGE_READ = 3;
     private static final int MESSAGE_CONNECT = 1;
-    private static final int MESSAGE_DISCONNECT = 2;
+    static final int MESSAGE_DISCONNECT = 2;
 
     private Menu mMenu;
 
     private BluetoothAdapter mBluetoothAdapter;
     private Handler mHandler;
-    private ConnectedThread mConnected;
+
+    /**
+     * Session to the desktop or {@code null}. Also read by the knock listener on
+     * {@link #mKnockEventThread}.
+     */
+    private volatile ConnectedThread mConnected;
     private AcceptThread mAccept;
 
+    /**
+     * Number of connections to desktops which are open, as reported to {@link #mHandler}. Only
+     * accessed on the UI thread.
+     */
+    private int mLiveSessions;
+
     private final static int REQUEST_ENABLE_BT = 1;
     private static final int SELECTED_PAIR = 2;
 
@@ -237,9 +322,15 @@ public class AuthenticatorActivity extends TestableActivity {
     public static final String PREF_MAC = "com.knockfactor.prefs.mac";
 
     private KnockEventListener knockListener;
+
+    /**
+     * Thread on which detected knocks are delivered to the desktop, so that the blocking Bluetooth
+     * write neither waits for nor stalls the UI thread.
+     */
+    private HandlerThread mKnockEventThread;
     private Intent mServiceIntent;
     // KnockFactorReceiver mKnockFactorReceiver;
-    private static final UUID OUR_UUID = UUID.fromString("d749856c-5143-48fe-8b86-35e4494bd073");
+    static final UUID OUR_UUID = UUID.fromString("d749856c-5143-48fe-8b86-35e4494bd073");
 
 
     /**
@@ -259,6 +350,19 @@ public class AuthenticatorActivity extends TestableActivity {
 
         mTotpCounter = mOtpProvider.getTotpCounter();
         mTotpClock = mOtpProvider.getTotpClock();
+        mTotpCodePrecomputer = DependencyInjector.getTotpCodePrecomputer();
+        mPinListLoader = new PinListLoader(mAccountDb, mOtpProvider, Looper.getMainLooper(),
+                new PinListLoader.Listener() {
+                    @Override
+                    public void onPinListLoaded(PinListLoader.Snapshot snapshot) {
+                        displayUserList(snapshot);
+                    }
+
+                    @Override
+                    public void onCodesLoaded(PinListLoader.Codes codes) {
+                        displayCodes(codes);
+                    }
+                });
 
         setContentView(R.layout.main);
 
@@ -319,6 +423,17 @@ public class AuthenticatorActivity extends TestableActivity {
                 mUserList.sendAccessibilityEvent(AccessibilityEvent.TYPE_VIEW_SELECTED);
             }
         });
+        mUserList.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                loadMissingCodes(firstVisibleItem, visibleItemCount);
+            }
+        });
 
         if (savedInstanceState == null) {
             // This is the first time this Activity is starting (i.e., not restoring previous state which
@@ -350,6 +465,10 @@ public class AuthenticatorActivity extends TestableActivity {
 
                         break;
                     case MESSAGE_CONNECT:
+                        // Several desktops may be connected at once: only the first one counts
+                        if (++mLiveSessions > 1) {
+                            break;
+                        }
                         Toast.makeText(getApplicationContext(), "Connected!", Toast.LENGTH_SHORT).show();
                         MenuItem menuItem = mMenu.findItem(R.id.connect);
                         menuItem.setTitle(getResources().getString(R.string.disconnect));
@@ -357,6 +476,10 @@ public class AuthenticatorActivity extends TestableActivity {
                         break;
 
                     case MESSAGE_DISCONNECT:
+                        // ... and only the last one to go
+                        if ((mLiveSessions == 0) || (--mLiveSessions > 0)) {
+                            break;
+                        }
                         Toast.makeText(getApplicationContext(), "Disconnected!", Toast.LENGTH_SHORT).show();
                         MenuItem item = mMenu.findItem(R.id.connect);
                         item.setTitle(getResources().getString(R.string.connect_menu_item));
@@ -380,7 +503,8 @@ public class AuthenticatorActivity extends TestableActivity {
                 Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
                 startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
             } else {
-                mAccept = new AcceptThread(getApplicationContext(), mHandler, mBluetoothAdapter, mUsers);
+                mAccept = new AcceptThread(getApplicationContext(), mHandler, mBluetoothAdapter,
+                        mUsers, mOtpProvider);
                 mAccept.start();
             }
 //            Intent discoverableIntent = new
@@ -395,27 +519,32 @@ public class AuthenticatorActivity extends TestableActivity {
         startService(mServiceIntent);
         */
 
-        knockListener = new KnockEventListener((SensorManager)getSystemService(SENSOR_SERVICE)) {
-
+        mKnockEventThread = new HandlerThread("KnockEvents");
+        mKnockEventThread.start();
+        knockListener = new KnockEventListener(this, new KnockEventListener.Listener() {
             @Override
-            public void onSensorChanged(SensorEvent event) {
-                super.onSensorChanged(event);
+            public void onKnock(long timestampNanos) {
+                Log.w("Knock Factor", "knock detected");
 
-                if (this.knockDetected) {
-                    Log.w("Knock Factor", "knock? " + this.knockDetected);
+                Intent serviceIntent =
+                        new Intent(AuthenticatorActivity.this, KnockFactorService.class);
+                serviceIntent.putExtra("STATUS", true);
+                startService(serviceIntent);
 
-                    mServiceIntent = new Intent(AuthenticatorActivity.this, KnockFactorService.class);
-                    mServiceIntent.putExtra("STATUS", this.knockDetected);
-                    startService(mServiceIntent);
-
-                    if (mConnected != null) {
-                        mConnected.write("knocked".getBytes());
-                    }
+                ConnectedThread connected = mConnected;
+                if (connected != null) {
+                    connected.write(FrameProtocol.TYPE_KNOCK, null);
                 }
-
-                this.knockDetected = false;
             }
-        };
+        }, new Handler(mKnockEventThread.getLooper()));
+        knockListener.start();
+        if (((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0)
+                && (getIntent().getBooleanExtra(EXTRA_RECORD_KNOCK_TRACE, false))) {
+            // Samples for tuning the knock detection off-device, see KnockTraceReplay. The intent
+            // is kept across configuration changes, each of which starts a new trace file.
+            knockListener.startRecording(new File(new File(getFilesDir(), KNOCK_TRACE_DIRECTORY),
+                    "trace-" + System.currentTimeMillis() + ".txt"));
+        }
     }
 
     /**
@@ -466,6 +595,13 @@ public class AuthenticatorActivity extends TestableActivity {
     protected void onStart() {
         super.onStart();
 
+        mTotpClock.addListener(mTimeCorrectionListener);
+        if (mTotpCodePrecomputer != null) {
+            mTotpCodePrecomputer.acquire();
+        }
+        IntentFilter screenStateFilter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+        screenStateFilter.addAction(Intent.ACTION_SCREEN_ON);
+        registerReceiver(mScreenStateReceiver, screenStateFilter);
         updateCodesAndStartTotpCountdownTask();
     }
 
@@ -480,18 +616,33 @@ public class AuthenticatorActivity extends TestableActivity {
 
     @Override
     protected void onStop() {
+        mTotpClock.removeListener(mTimeCorrectionListener);
+        unregisterReceiver(mScreenStateReceiver);
         stopTotpCountdownTask();
+        if (mTotpCodePrecomputer != null) {
+            mTotpCodePrecomputer.release();
+        }
 
         super.onStop();
         // unregisterReceiver(mKnockFactorReceiver);
         // knockListener.pauseListener();
     }
 
+    @Override
+    protected void onDestroy() {
+        mPinListLoader.close();
+        knockListener.stop();
+        mKnockEventThread.quit();
+
+        super.onDestroy();
+    }
+
     private void updateCodesAndStartTotpCountdownTask() {
         stopTotpCountdownTask();
 
-        mTotpCountdownTask =
-                new TotpCountdownTask(mTotpCounter, mTotpClock, TOTP_COUNTDOWN_REFRESH_PERIOD);
+        // Wakes up once per time step only: the indicators animate the countdown themselves.
+        mTotpCountdownTask = new TotpCountdownTask(mTotpCounter, mTotpClock,
+                TotpCountdownTask.NOTIFY_ON_COUNTER_VALUE_CHANGE);
         mTotpCountdownTask.setListener(new TotpCountdownTask.Listener() {
             @Override
             public void onTotpCountdown(long millisRemaining) {
@@ -499,7 +650,7 @@ public class AuthenticatorActivity extends TestableActivity {
                     // No need to reach to this even because the Activity is finishing anyway
                     return;
                 }
-                setTotpCountdownPhaseFromTimeTillNextValue(millisRemaining);
+                startCountdownIndicators(millisRemaining);
             }
 
             @Override
@@ -529,83 +680,131 @@ public class AuthenticatorActivity extends TestableActivity {
         refreshUserList(false);
     }
 
-    private void setTotpCountdownPhase(double phase) {
-        mTotpCountdownPhase = phase;
-        updateCountdownIndicators();
-    }
-
-    private void setTotpCountdownPhaseFromTimeTillNextValue(long millisRemaining) {
-        setTotpCountdownPhase(
-                ((double) millisRemaining) / Utilities.secondsToMillis(mTotpCounter.getTimeStep()));
+    private void startCountdownIndicators(long millisRemaining) {
+        mTotpCountdownPhaseSource.start(
+                AnimationUtils.currentAnimationTimeMillis() + millisRemaining,
+                Utilities.secondsToMillis(mTotpCounter.getTimeStep()));
     }
 
     private void refreshVerificationCodes() {
         refreshUserList();
-        setTotpCountdownPhase(1.0);
     }
 
-    private void updateCountdownIndicators() {
-        for (int i = 0, len = mUserList.getChildCount(); i < len; i++) {
-            View listEntry = mUserList.getChildAt(i);
-            CountdownIndicator indicator =
-                    (CountdownIndicator) listEntry.findViewById(R.id.countdown_icon);
-            if (indicator != null) {
-                indicator.setPhase(mTotpCountdownPhase);
-            }
+    /**
+     * Makes the connected desktops match their code requests against the current accounts.
+     */
+    private void offerUsersToDesktops() {
+        if (mAccept != null) {
+            mAccept.setUsers(mUsers);
         }
-    }
-
-    public static PinInfo[] getUsers(AccountDb accountDb, OtpSource mOtpProvider) {
-        ArrayList<String> usernames = new ArrayList<String>();
-        accountDb.getNames(usernames);
-
-        int userCount = usernames.size();
-
-        if (userCount > 0) {
-            PinInfo[] users = new PinInfo[userCount];
-
-            for (int i = 0; i < userCount; ++i) {
-                String user = usernames.get(i);
-
-                PinInfo currentPin = new PinInfo();
-                currentPin.pin = "_ _ _ _ _ _";
-                currentPin.hotpCodeGenerationAllowed = true;
-
-                try {
-                    users[i] = computePin(currentPin, accountDb, mOtpProvider, user, false);
-                } catch (OtpSourceException ignored) {
-                }
-            }
-
-            return users;
-        } else {
-            return new PinInfo[0]; // clear any existing user PIN state
+        ConnectedThread connected = mConnected;
+        if (connected != null) {
+            connected.setUsers(mUsers);
         }
     }
 
     /**
-     * Display list of user emails and updated pin codes.
+     * Display list of user emails and updated pin codes. The codes are computed in the background
+     * and displayed once available.
      *
      * @param isAccountModified if true, force full refresh
      */
     // @VisibleForTesting
     public void refreshUserList(boolean isAccountModified) {
-        ArrayList<String> usernames = new ArrayList<String>();
-        mAccountDb.getNames(usernames);
+        // Only the codes of the rows in view are computed right away, see loadMissingCodes.
+        int firstPosition = mUserList.getFirstVisiblePosition();
+        int lastPosition = (mUserList.getChildCount() > 0)
+                ? mUserList.getLastVisiblePosition()
+                : firstPosition + PIN_LIST_INITIAL_ROW_COUNT - 1;
+        mPinListLoader.refresh(isAccountModified, firstPosition - PIN_LIST_PREFETCH_MARGIN,
+                lastPosition + PIN_LIST_PREFETCH_MARGIN);
+    }
+
+    /**
+     * Requests the codes of the time-based accounts in and around the visible rows which were left
+     * out by the latest refresh.
+     */
+    private void loadMissingCodes(int firstVisiblePosition, int visibleCount) {
+        int firstPosition = Math.max(0, firstVisiblePosition - PIN_LIST_PREFETCH_MARGIN);
+        int lastPosition = Math.min(mUsers.length - 1,
+                firstVisiblePosition + visibleCount - 1 + PIN_LIST_PREFETCH_MARGIN);
+        String[] names = null;
+        for (int i = firstPosition; i <= lastPosition; i++) {
+            PinInfo currentPin = mUsers[i];
+            if ((currentPin == null) || (!currentPin.codeRequired)) {
+                continue;
+            }
+            if (names == null) {
+                names = new String[lastPosition - firstPosition + 1];
+            }
+            names[i - firstPosition] = currentPin.user;
+            currentPin.codeRequired = false;
+        }
+        if (names != null) {
+            mPinListLoader.loadCodes(firstPosition, names);
+        }
+    }
 
-        int userCount = usernames.size();
+    /**
+     * Displays the codes loaded by {@link #loadMissingCodes(int, int)}.
+     */
+    private void displayCodes(PinListLoader.Codes codes) {
+        boolean changed = false;
+        for (int i = 0, len = codes.size(); i < len; i++) {
+            int position = codes.getFirstPosition() + i;
+            String code = codes.getCode(i);
+            if ((code == null) || (position >= mUsers.length)) {
+                continue;
+            }
+            PinInfo currentPin = mUsers[position];
+            if ((currentPin != null) && (codes.getName(i).equals(currentPin.user))) {
+                currentPin.pin = code;
+                changed = true;
+            }
+        }
+        if (changed) {
+            mUserAdapter.notifyDataSetChanged();
+        }
+    }
 
+    /**
+     * Displays the accounts and codes loaded by {@link #mPinListLoader}.
+     */
+    private void displayUserList(PinListLoader.Snapshot snapshot) {
+        int userCount = snapshot.size();
+
+        boolean usersChanged = false;
         if (userCount > 0) {
-            boolean newListRequired = isAccountModified || mUsers.length != userCount;
+            boolean newListRequired = snapshot.isAccountModified() || mUsers.length != userCount;
             if (newListRequired) {
                 mUsers = new PinInfo[userCount];
+                usersChanged = true;
             }
 
             for (int i = 0; i < userCount; ++i) {
-                String user = usernames.get(i);
-                try {
-                    computeAndDisplayPin(user, i, false);
-                } catch (OtpSourceException ignored) {
+                PinInfo currentPin = mUsers[i];
+                if (currentPin == null) {
+                    currentPin = new PinInfo();
+                    currentPin.pin = getString(R.string.empty_pin);
+                    currentPin.hotpCodeGenerationAllowed = true;
+                    mUsers[i] = currentPin;
+                }
+                if (!snapshot.getName(i).equals(currentPin.user)) {
+                    usersChanged = true;
+                }
+                currentPin.user = snapshot.getName(i);
+                currentPin.isHotp = snapshot.isHotp(i);
+                currentPin.codeRequired = false;
+                if (currentPin.isHotp) {
+                    continue;
+                }
+                if (!snapshot.isCodeLoaded(i)) {
+                    // Off screen: the code of the previous interval must not be shown.
+                    currentPin.pin = getString(R.string.empty_pin);
+                    currentPin.codeRequired = true;
+                } else if (snapshot.getCode(i) != null) {
+                    currentPin.pin = snapshot.getCode(i);
+                    currentPin.hotpCodeGenerationAllowed = true;
                 }
             }
 
@@ -623,10 +822,15 @@ public class AuthenticatorActivity extends TestableActivity {
                 registerForContextMenu(mUserList);
             }
         } else {
+            usersChanged = (mUsers.length > 0);
             mUsers = new PinInfo[0]; // clear any existing user PIN state
             mUserList.setVisibility(View.GONE);
         }
 
+        if (usersChanged) {
+            offerUsersToDesktops();
+        }
+
         // Display the list of accounts if there are accounts, otherwise display a
         // different layout explaining the user how this app works and providing the user with an easy
         // way to add an account.
@@ -636,40 +840,48 @@ public class AuthenticatorActivity extends TestableActivity {
 
     public void computeAndDisplayPin(String user, int position,
                                      boolean computeHotp) throws OtpSourceException {
+        Account account = mAccountDb.loadAccount(user);
+        if (account == null) {
+            throw new OtpSourceException("No such account");
+        }
+        computeAndDisplayPin(account, position, computeHotp);
+    }
+
+    private void computeAndDisplayPin(Account account, int position,
+                                      boolean computeHotp) throws OtpSourceException {
         if (mUsers[position] != null) {
-            mUsers[position] = computePin(mUsers[position], mAccountDb, mOtpProvider, user, computeHotp);
+            mUsers[position] = computePin(mUsers[position], account, mOtpProvider, computeHotp);
         } else {
             PinInfo currentPin = new PinInfo();
             currentPin.pin = getString(R.string.empty_pin);
             currentPin.hotpCodeGenerationAllowed = true;
 
-            mUsers[position]= computePin(currentPin, mAccountDb, mOtpProvider, user, computeHotp);
+            mUsers[position]= computePin(currentPin, account, mOtpProvider, computeHotp);
         }
 
     }
 
     /**
-     * Computes the PIN and saves it in mUsers. This currently runs in the UI
-     * thread so it should not take more than a second or so. If necessary, we can
-     * move the computation to a background thread.
+     * Computes the PIN and saves it in mUsers. The account list is refreshed in the background by
+     * {@link PinListLoader}; this is only used on the UI thread to generate a single HOTP code on
+     * request.
      *
-     * @param user        the user email to display with the PIN
+     * @param account     the account to display with the PIN
      * @param computeHotp true if we should increment counter and display new hotp
      */
-    public static PinInfo computePin(PinInfo currentPin, AccountDb accountdb, OtpSource otpProvider, String user,
+    public static PinInfo computePin(PinInfo currentPin, Account account, OtpSource otpProvider,
                                      boolean computeHotp) throws OtpSourceException {
 
-        OtpType type = accountdb.getType(user);
-        currentPin.isHotp = (type == OtpType.HOTP);
+        currentPin.isHotp = (account.getType() == OtpType.HOTP);
 
-        currentPin.user = user;
+        currentPin.user = account.getName();
 
         if (!currentPin.isHotp || computeHotp) {
             // Always safe to recompute, because this code path is only
             // reached if the account is:
             // - Time-based, in which case getNextCode() does not change state.
             // - Counter-based (HOTP) and computeHotp is true.
-            currentPin.pin = otpProvider.getNextCode(user);
+            currentPin.pin = otpProvider.getNextCode(currentPin.user);
             currentPin.hotpCodeGenerationAllowed = true;
         }
 
@@ -747,9 +959,11 @@ public class AuthenticatorActivity extends TestableActivity {
             return;
         }
 
-        if (secret.equals(mAccountDb.getSecret(user)) &&
-                counter == mAccountDb.getCounter(user) &&
-                type == mAccountDb.getType(user)) {
+        Account existing = mAccountDb.loadAccount(user);
+        if (existing != null &&
+                secret.equals(existing.getSecret()) &&
+                counter.equals(existing.getCounter()) &&
+                type == existing.getType()) {
             return;  // nothing to update.
         }
 
@@ -929,9 +1143,10 @@ public class AuthenticatorActivity extends TestableActivity {
                     if (mAccountDb.nameExists(newName)) {
                         Toast.makeText(context, R.string.error_exists, Toast.LENGTH_LONG).show();
                     } else {
+                        Account account = mAccountDb.loadAccount(user);
                         saveSecretAndRefreshUserList(newName,
-                                mAccountDb.getSecret(user), user, mAccountDb.getType(user),
-                                mAccountDb.getCounter(user));
+                                account.getSecret(), user, account.getType(),
+                                account.getCounter());
                     }
                 }
             }
@@ -967,12 +1182,17 @@ public class AuthenticatorActivity extends TestableActivity {
                         mAccept = null;
                     }
 
-                    mAccept = new AcceptThread(getApplicationContext(), mHandler, mBluetoothAdapter, mUsers);
+                    mAccept = new AcceptThread(getApplicationContext(), mHandler,
+                            mBluetoothAdapter, mUsers, mOtpProvider);
                     mAccept.start();
                 } else {
                     if (mConnected != null) {
                         mConnected.cancel();
                     }
+
+                    if (mAccept != null) {
+                        mAccept.closeSessions();
+                    }
                 }
 
                 return true;
@@ -1002,7 +1222,10 @@ public class AuthenticatorActivity extends TestableActivity {
                 for (BluetoothDevice device : pairedDevices) {
                     // Add the name and address to an array adapter to show in a ListView
                     if (device.getAddress().equals(selected)) {
-                        new ConnectThread(getApplicationContext(), mBluetoothAdapter, device, mHandler, mUsers).start();
+                        // The desktop knocks are delivered to from now on
+                        saveMAC(this, device.getAddress());
+                        new ConnectThread(mBluetoothAdapter, device, mHandler, mUsers,
+                                mOtpProvider).start();
 
                         Toast.makeText(this, "connecting to " + device.getName(), Toast.LENGTH_SHORT).show();
 
@@ -1247,6 +1470,12 @@ public class AuthenticatorActivity extends TestableActivity {
          * HOTP only: Whether code generation is allowed for this account.
          */
         private boolean hotpCodeGenerationAllowed;
+
+        /**
+         * TOTP only: Whether the code still has to be computed because the row was out of view
+         * when the list was last refreshed.
+         */
+        private boolean codeRequired;
     }
 
 
@@ -1386,7 +1615,7 @@ public class AuthenticatorActivity extends TestableActivity {
                 row.setTag(null);
 
                 countdownIndicator.setVisibility(View.VISIBLE);
-                countdownIndicator.setPhase(mTotpCountdownPhase);
+                countdownIndicator.setPhaseSource(mTotpCountdownPhaseSource);
             }
 
             if (getString(R.string.empty_pin).equals(currentPin.pin)) {
@@ -1463,16 +1692,17 @@ public class AuthenticatorActivity extends TestableActivity {
         private final BluetoothAdapter mBluetoothAdapter;
         private final Handler mHandler;
         private final PinInfo[] mUsers;
-        private final Context mContext;
+        private final OtpSource mOtpSource;
 
-        public ConnectThread(Context context, BluetoothAdapter bluetoothAdapter, BluetoothDevice device, Handler handler, PinInfo[] users) {
+        public ConnectThread(BluetoothAdapter bluetoothAdapter, BluetoothDevice device, Handler handler, PinInfo[] users,
+                OtpSource otpSource) {
             // Use a temporary object that is later assigned to mmSocket,
             // because mmSocket is final
             BluetoothSocket tmp = null;
             mmDevice = device;
             mHandler = handler;
             mUsers = users;
-            mContext = context;
+            mOtpSource = otpSource;
             mBluetoothAdapter = bluetoothAdapter;
 
             // Get a BluetoothSocket to connect with the given BluetoothDevice
@@ -1500,7 +1730,7 @@ public class AuthenticatorActivity extends TestableActivity {
             }
 
             // Do work to manage the connection (in a separate thread)
-            manageConnectedSocket(mContext, mHandler, mmSocket, mUsers);
+            manageConnectedSocket(mHandler, mmSocket, mUsers, mOtpSource);
         }
 
         /** Will cancel an in-progress connection, and close the socket */
@@ -1511,26 +1741,60 @@ public class AuthenticatorActivity extends TestableActivity {
         }
     }
 
-    private static void manageConnectedSocket(Context context, Handler handler, BluetoothSocket socket, PinInfo[] users) {
-        new ConnectedThread(context, handler, socket, users).start();
+    private static void manageConnectedSocket(Handler handler, BluetoothSocket socket, PinInfo[] users,
+            OtpSource otpSource) {
+        new Thread(new ConnectedThread(handler, socket, users, otpSource)).start();
     }
 
     private void manageConnectedSocket(BluetoothSocket socket) {
-        mConnected = new ConnectedThread(this, mHandler, socket, mUsers);
-        mConnected.start();
+        mConnected = new ConnectedThread(mHandler, socket, mUsers, mOtpProvider);
+        new Thread(mConnected).start();
     }
 
+    /**
+     * Listens for connections from paired desktops. Each accepted connection is served by a
+     * {@link ConnectedThread} running on a bounded pool, so that several desktops can be served
+     * at once. Connections beyond {@link #MAX_SESSIONS} are refused, and sessions which neither
+     * send nor receive anything for {@link #SESSION_IDLE_TIMEOUT_MILLIS} are closed. The first
+     * desktop to connect becomes the one knocks are delivered to, unless one was already chosen.
+     */
     public static class AcceptThread extends Thread {
+        static final int MAX_SESSIONS = 4;
+        static final long SESSION_IDLE_TIMEOUT_MILLIS = 5 * Utilities.MINUTE_IN_MILLIS;
+        private static final long IDLE_CHECK_PERIOD_MILLIS = 30 * Utilities.SECOND_IN_MILLIS;
+
         private final BluetoothServerSocket mmServerSocket;
+        private final Context mContext;
         private BluetoothAdapter mBluetoothAdapter;
         private Handler mHandler;
-        private Context mContext;
-        private PinInfo[] mUsers;
+        private volatile ConnectedThread.IndexedUsers mUsers;
+        private final OtpSource mOtpSource;
 
-        public AcceptThread(Context context, Handler handler, BluetoothAdapter adapter, PinInfo[] mUsers) {
+        private final Set<ConnectedThread> mSessions =
+                Collections.newSetFromMap(new ConcurrentHashMap<ConnectedThread, Boolean>());
+        private final ThreadPoolExecutor mSessionExecutor;
+        private final ScheduledExecutorService mIdleChecker;
+
+        public AcceptThread(Context context, Handler handler, BluetoothAdapter adapter,
+                PinInfo[] users, OtpSource otpSource) {
             mContext = context;
             mHandler = handler;
             mBluetoothAdapter = adapter;
+            mUsers = new ConnectedThread.IndexedUsers(users);
+            mOtpSource = otpSource;
+
+            // Session threads are only kept around while there are sessions to serve.
+            mSessionExecutor = new ThreadPoolExecutor(MAX_SESSIONS, MAX_SESSIONS,
+                    SESSION_IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            mSessionExecutor.allowCoreThreadTimeOut(true);
+            mIdleChecker = Executors.newSingleThreadScheduledExecutor();
+            mIdleChecker.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    closeIdleSessions();
+                }
+            }, IDLE_CHECK_PERIOD_MILLIS, IDLE_CHECK_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
 
             // Use a temporary object that is later assigned to mmServerSocket,
             // because mmServerSocket is final
@@ -1544,7 +1808,7 @@ public class AuthenticatorActivity extends TestableActivity {
 
         public void run() {
             BluetoothSocket socket = null;
-            // Keep listening until exception occurs or a socket is returned
+            // Keep listening until exception occurs
             while (true) {
                 try {
                     socket = mmServerSocket.accept();
@@ -1553,36 +1817,125 @@ public class AuthenticatorActivity extends TestableActivity {
                 }
                 // If a connection was accepted
                 if (socket != null) {
-                    // Do work to manage the connection (in a separate thread)
-                    manageConnectedSocket(mContext, mHandler, socket, mUsers);
-                    try {
-                        mmServerSocket.close();
-                    } catch (IOException e) {
-                        Toast.makeText(mContext, "Could not close socket!", Toast.LENGTH_SHORT).show();
+                    serve(socket);
+                }
+            }
+        }
+
+        private void serve(BluetoothSocket socket) {
+            if (mSessions.size() >= MAX_SESSIONS) {
+                Log.w("Knock Factor", "Refusing connection: too many sessions");
+                try {
+                    socket.close();
+                } catch (IOException e) { }
+                return;
+            }
+
+            // Later desktops must not take over the one knocks are delivered to
+            if (getMAC(mContext).length() == 0) {
+                saveMAC(mContext, socket.getRemoteDevice().getAddress());
+            }
+
+            final ConnectedThread session = new ConnectedThread(mHandler, socket, mUsers, mOtpSource);
+            mSessions.add(session);
+            // Users replaced while the session was not in mSessions yet
+            session.setUsers(mUsers);
+            try {
+                mSessionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            session.run();
+                        } finally {
+                            mSessions.remove(session);
+                        }
                     }
-                    break;
+                });
+            } catch (RejectedExecutionException e) {
+                // Cancelled concurrently
+                mSessions.remove(session);
+                session.cancel();
+            }
+        }
+
+        private void closeIdleSessions() {
+            for (ConnectedThread session : mSessions) {
+                if (session.getIdleMillis() > SESSION_IDLE_TIMEOUT_MILLIS) {
+                    Log.w("Knock Factor", "Closing idle session");
+                    // The session's thread finishes once its socket is closed.
+                    session.cancel();
                 }
             }
         }
 
-        /** Will cancel the listening socket, and cause the thread to finish */
+        /**
+         * Replaces the users (and their PINs) offered to the sessions, live and to come. The
+         * index used to match their code requests is built once and shared by all sessions.
+         */
+        public void setUsers(PinInfo[] users) {
+            ConnectedThread.IndexedUsers indexedUsers = new ConnectedThread.IndexedUsers(users);
+            mUsers = indexedUsers;
+            for (ConnectedThread session : mSessions) {
+                session.setUsers(indexedUsers);
+            }
+        }
+
+        /** Closes all sessions accepted so far, but keeps listening */
+        public void closeSessions() {
+            for (ConnectedThread session : mSessions) {
+                session.cancel();
+            }
+        }
+
+        /** Will cancel the listening socket and all sessions, and cause the thread to finish */
         public void cancel() {
             try {
                 mmServerSocket.close();
             } catch (IOException e) { }
+            mIdleChecker.shutdownNow();
+            mSessionExecutor.shutdown();
+            closeSessions();
         }
     }
 
-    private static class ConnectedThread extends Thread {
+    /**
+     * Serves a connection to a desktop: answers its code requests and sends it knocks. Speaks
+     * {@link FrameProtocol} frames with desktops which open with one, and raw text otherwise.
+     * Runs on a thread (or pool) provided by its owner.
+     */
+    static class ConnectedThread implements Runnable, FrameDecoder.Listener {
+        /* Size of the buffer for the first read and for raw text requests */
+        private static final int LEGACY_BUFFER_LENGTH = 1024;
+
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
         private final Handler mHandler;
-        private final PinInfo[] mUsers;
+        private volatile IndexedUsers mUsers;
+        private final OtpSource mOtpSource;
+        private final FrameEncoder mEncoder = new FrameEncoder();
+
+        /**
+         * Whether the remote device speaks {@link FrameProtocol} frames rather than raw text, which
+         * is known once it has sent its first frame.
+         */
+        private volatile boolean mFramed;
+
+        /**
+         * Time ({@link SystemClock#elapsedRealtime()}) data was last read or written.
+         */
+        private volatile long mLastActivityTime = SystemClock.elapsedRealtime();
 
-        public ConnectedThread(Context context, Handler handler, BluetoothSocket socket, PinInfo[] users) {
+        public ConnectedThread(Handler handler, BluetoothSocket socket, PinInfo[] users,
+                OtpSource otpSource) {
+            this(handler, socket, new IndexedUsers(users), otpSource);
+        }
+
+        ConnectedThread(Handler handler, BluetoothSocket socket, IndexedUsers users,
+                OtpSource otpSource) {
             mHandler = handler;
             mUsers = users;
+            mOtpSource = otpSource;
 
             mmSocket = socket;
             InputStream tmpIn = null;
@@ -1597,63 +1950,221 @@ public class AuthenticatorActivity extends TestableActivity {
                 Log.w("Knock Factor", "Could not create streams.");
             }
 
-            saveMAC(context, socket.getRemoteDevice().getAddress());
-
-            mHandler.obtainMessage(MESSAGE_CONNECT).sendToTarget();
-
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
         }
 
         public void run() {
-            byte[] buffer = new byte[1024];  // buffer store for the stream
-            int bytes; // bytes returned from read()
+            // Reported here rather than on creation, so that every connect has its disconnect
+            mHandler.obtainMessage(MESSAGE_CONNECT, this).sendToTarget();
 
-            // Keep listening to the InputStream until an exception occurs
-            while (true) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
+            // The first data received tells whether the remote device speaks frames or raw text
+            try {
+                byte[] buffer = new byte[LEGACY_BUFFER_LENGTH];
+                int bytes = mmInStream.read(buffer);
+                if (bytes > 0) {
+                    mLastActivityTime = SystemClock.elapsedRealtime();
+                    if (FrameDecoder.isFrameStart(buffer, 0, bytes)) {
+                        mFramed = true;
+                        readFrames(buffer, bytes);
+                    } else {
+                        readText(buffer, bytes);
+                    }
+                }
+            } catch (IOException e) {
+                Log.w("Knock Factor", "Connection failed: " + e.getMessage());
+            }
 
-                    byte[] message = Arrays.copyOf(buffer, bytes);
-                    String contents = new String(message, "UTF-8");
+            // The connection was closed, either remotely or by cancel()
+            mHandler.obtainMessage(MESSAGE_DISCONNECT, this)
+                    .sendToTarget();
+        }
+
+        /* Keeps decoding frames, starting with the data already read, until the stream ends */
+        private void readFrames(byte[] buffer, int bytes) throws IOException {
+            FrameDecoder decoder = new FrameDecoder(this);
+            decoder.feed(buffer, 0, bytes);
+            while (decoder.readFrom(mmInStream) >= 0) {
+                mLastActivityTime = SystemClock.elapsedRealtime();
+            }
+        }
 
-                    // Send the obtained bytes to the UI activity
-                    mHandler.obtainMessage(MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
+        /*
+         * Keeps answering raw text requests, starting with the data already read, until the stream
+         * ends. Legacy desktops write each request at once, so each read is taken as one request.
+         */
+        private void readText(byte[] buffer, int bytes) throws IOException {
+            do {
+                mLastActivityTime = SystemClock.elapsedRealtime();
+                onCodeRequest(0, buffer, 0, bytes);
+                bytes = mmInStream.read(buffer);
+            } while (bytes >= 0);
+        }
 
-                    for (PinInfo info : mUsers) {
-                        if (info.user.toLowerCase().contains(contents.toLowerCase())) {
-                            write(info.pin.getBytes());
+        @Override
+        public void onFrame(int type, int requestId, byte[] payload, int offset, int length)
+                throws IOException {
+            switch (type) {
+                case FrameProtocol.TYPE_KEEP_ALIVE:
+                    break;
 
-                            Log.w("Knock Factor", "sending pin for " + info.user + " : " + info.pin);
+                case FrameProtocol.TYPE_HELLO:
+                    writeFrame(FrameProtocol.TYPE_HELLO, requestId, null);
+                    break;
 
-                            return;
-                        }
-                    }
+                case FrameProtocol.TYPE_CODE_REQUEST:
+                    onCodeRequest(requestId, payload, offset, length);
+                    break;
 
-                    Log.w("Knock Factor", "user not found: " + contents);
-                } catch (IOException e) {
+                default:
+                    Log.w("Knock Factor", "Ignoring frame of unknown type: " + type);
                     break;
+            }
+        }
+
+        private void onCodeRequest(int requestId, byte[] payload, int offset, int length)
+                throws IOException {
+            byte[] message = Arrays.copyOfRange(payload, offset, offset + length);
+            String contents = new String(message, "UTF-8");
+
+            // Send the obtained bytes to the UI activity
+            mHandler.obtainMessage(MESSAGE_READ, length, -1, message)
+                    .sendToTarget();
+
+            PinInfo user = findUser(contents);
+            String pin = (user != null) ? getCurrentPin(user) : null;
+            if (pin != null) {
+                if (mFramed) {
+                    writeFrame(FrameProtocol.TYPE_CODE_RESPONSE, requestId, pin);
+                } else {
+                    writeText(pin);
+                }
+
+                Log.w("Knock Factor", "sending pin for " + user.user + " : " + pin);
+            } else {
+                if (mFramed) {
+                    writeFrame(FrameProtocol.TYPE_NOT_FOUND, requestId, null);
                 }
+
+                Log.w("Knock Factor", "user not found: " + contents);
             }
         }
 
-        /* Call this from the main activity to send data to the remote device */
-        public void write(byte[] bytes) {
+        private PinInfo findUser(String contents) {
+            IndexedUsers users = mUsers;
+            int index = users.mMatcher.match(contents);
+            return (index >= 0) ? users.mPins[index] : null;
+        }
+
+        /*
+         * Gets the code of the user for the current interval, computed on demand (and shared with
+         * the UI through the process-wide OtpSource) rather than the one computed with the user
+         * list, which may have expired. HOTP codes are never generated here, as that would advance
+         * the counter: the one last shown to the user is sent instead.
+         */
+        private String getCurrentPin(PinInfo user) {
+            if (user.isHotp) {
+                return user.pin;
+            }
             try {
-                mmOutStream.write(bytes);
-            } catch (IOException e) { }
+                return mOtpSource.getNextCode(user.user);
+            } catch (OtpSourceException e) {
+                Log.w("Knock Factor", "Could not compute pin for " + user.user, e);
+                return null;
+            }
+        }
+
+        /* Replaces the users (and their PINs) offered to the remote device */
+        void setUsers(PinInfo[] users) {
+            setUsers(new IndexedUsers(users));
+        }
+
+        /* Replaces the users offered to the remote device with ones which may be shared */
+        void setUsers(IndexedUsers users) {
+            mUsers = users;
+        }
+
+        /*
+         * Users together with the index used to match code requests to them. The index is
+         * immutable, so that one instance may be shared by several sessions.
+         */
+        static class IndexedUsers {
+            private final PinInfo[] mPins;
+            private final AccountMatcher mMatcher;
+
+            IndexedUsers(PinInfo[] pins) {
+                mPins = pins;
+                String[] names = new String[pins.length];
+                for (int i = 0; i < pins.length; i++) {
+                    names[i] = (pins[i] != null) ? pins[i].user : null;
+                }
+                mMatcher = new AccountMatcher(names);
+            }
+
+            /*
+             * Loads the users from the database without computing any code. The codes of
+             * time-based accounts are computed on request, see getCurrentPin.
+             */
+            static IndexedUsers load(AccountDb accountDb) {
+                List<Account> accounts = accountDb.loadAll();
+                PinInfo[] pins = new PinInfo[accounts.size()];
+                for (int i = 0; i < pins.length; i++) {
+                    Account account = accounts.get(i);
+                    PinInfo currentPin = new PinInfo();
+                    currentPin.pin = "_ _ _ _ _ _";
+                    currentPin.hotpCodeGenerationAllowed = true;
+                    currentPin.user = account.getName();
+                    currentPin.isHotp = (account.getType() == OtpType.HOTP);
+                    pins[i] = currentPin;
+                }
+                return new IndexedUsers(pins);
+            }
+        }
+
+        /*
+         * Call this from the main activity to send a message to the remote device. Unless the
+         * remote device speaks frames, knocks are sent as raw text and other messages, which it
+         * would not understand, are not sent at all. Returns false if the write failed.
+         */
+        public boolean write(int type, String payload) {
+            try {
+                if (mFramed) {
+                    writeFrame(type, 0, payload);
+                } else if (type == FrameProtocol.TYPE_KNOCK) {
+                    writeText(FrameProtocol.LEGACY_KNOCK);
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /* Whether the remote device speaks frames, as far as known yet */
+        boolean isFramed() {
+            return mFramed;
+        }
+
+        private synchronized void writeFrame(int type, int requestId, String payload)
+                throws IOException {
+            mEncoder.write(mmOutStream, type, requestId, payload);
+            mLastActivityTime = SystemClock.elapsedRealtime();
+        }
+
+        private synchronized void writeText(String text) throws IOException {
+            mmOutStream.write(text.getBytes("UTF-8"));
+            mmOutStream.flush();
+            mLastActivityTime = SystemClock.elapsedRealtime();
+        }
+
+        /* Number of milliseconds since data was last read or written */
+        long getIdleMillis() {
+            return SystemClock.elapsedRealtime() - mLastActivityTime;
         }
 
         /* Call this from the main activity to shutdown the connection */
         public void cancel() {
             try {
                 mmSocket.close();
-
-                // Send the obtained bytes to the UI activity
-                mHandler.obtainMessage(MESSAGE_DISCONNECT)
-                        .sendToTarget();
             } catch (IOException e) { }
         }
     }
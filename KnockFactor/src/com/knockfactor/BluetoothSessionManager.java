@@ -0,0 +1,300 @@
+package com.knockfactor;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Long-lived RFCOMM session with the paired desktop, used to deliver knocks without a connect on
+ * the critical path of the user's login.
+ * <p/>
+ * <p>The session is opened by {@link #start()} or by the first knock, and is then kept open.
+ * Desktops speaking {@link FrameProtocol} frames get a keep-alive every
+ * {@link #KEEP_ALIVE_PERIOD_MILLIS}, so that a dead link is noticed before the next knock. Raw-text
+ * desktops would take a keep-alive for a code, so there a dead link is only noticed by a failed
+ * read or write. A lost or failed connection is retried with exponential backoff, at most
+ * {@link #MAX_RECONNECT_ATTEMPTS} times in a row; after that the session stays closed (and stops
+ * keeping codes precomputed) until the next knock or {@link #start()}. The paired device is
+ * resolved once per desktop address rather than on every connect, and the accounts offered to the
+ * desktop are only reloaded once {@link AccountDb} has modified them; their codes are computed
+ * when requested.
+ * <p/>
+ * <p>Thread-safety: public methods may be invoked on any thread. All state is confined to the
+ * session's own {@link HandlerThread}, which also performs the blocking connects.
+ */
+public class BluetoothSessionManager {
+
+    private static final String LOG_TAG = "Knock Factor";
+
+    static final long KEEP_ALIVE_PERIOD_MILLIS = 20 * Utilities.SECOND_IN_MILLIS;
+    static final long MIN_RECONNECT_DELAY_MILLIS = Utilities.SECOND_IN_MILLIS;
+    static final long MAX_RECONNECT_DELAY_MILLIS = 5 * Utilities.MINUTE_IN_MILLIS;
+
+    /**
+     * Number of consecutive failed connects (about 13 minutes of backoff) after which
+     * reconnecting is given up.
+     */
+    static final int MAX_RECONNECT_ATTEMPTS = 10;
+
+    /**
+     * Knocks which could not be delivered within this time are dropped rather than delivered late.
+     */
+    static final long KNOCK_TIMEOUT_MILLIS = 10 * Utilities.SECOND_IN_MILLIS;
+
+    private final Context mContext;
+    private final BluetoothAdapter mAdapter;
+    private final AccountDb mAccountDb;
+    private final OtpSource mOtpSource;
+    private final TotpCodePrecomputer mPrecomputer;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // The fields below are only accessed on mThread.
+    private boolean mClosed;
+    private String mDeviceAddress;
+    private BluetoothDevice mDevice;
+    private AuthenticatorActivity.ConnectedThread mSession;
+    private AuthenticatorActivity.ConnectedThread.IndexedUsers mUsers;
+
+    /**
+     * {@link AccountDb#getModificationCount()} when {@link #mUsers} was loaded.
+     */
+    private int mUsersModificationCount;
+    private long mReconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+    private int mReconnectAttempts;
+
+    /**
+     * Time ({@link SystemClock#elapsedRealtime()}) of the knock waiting to be delivered or
+     * {@code -1} if there is none.
+     */
+    private long mPendingKnockTime = -1;
+
+    private final Runnable mConnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            connect();
+        }
+    };
+
+    private final Runnable mKnockRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPendingKnockTime = SystemClock.elapsedRealtime();
+            if (mSession != null) {
+                deliverPendingKnock();
+            } else {
+                // Don't wait for the scheduled reconnect.
+                mHandler.removeCallbacks(mConnectRunnable);
+                connect();
+            }
+        }
+    };
+
+    private final Runnable mKeepAliveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mSession == null) {
+                return;
+            }
+            if (!mSession.isFramed()) {
+                // Not (yet) known to understand keep-alives: rely on the session's reads failing.
+                mHandler.postDelayed(this, KEEP_ALIVE_PERIOD_MILLIS);
+                return;
+            }
+            if (mSession.write(FrameProtocol.TYPE_KEEP_ALIVE, null)) {
+                mHandler.postDelayed(this, KEEP_ALIVE_PERIOD_MILLIS);
+            } else {
+                onSessionLost();
+            }
+        }
+    };
+
+    private final Runnable mCloseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mClosed = true;
+            mPendingKnockTime = -1;
+            mHandler.removeCallbacks(mConnectRunnable);
+            closeSession();
+            mThread.quit();
+        }
+    };
+
+    /**
+     * @param precomputer precomputer of the codes to keep running while the session is open or
+     *                    {@code null} for none.
+     */
+    public BluetoothSessionManager(Context context, BluetoothAdapter adapter, AccountDb accountDb,
+                                   OtpSource otpSource, TotpCodePrecomputer precomputer) {
+        mContext = context;
+        mAdapter = adapter;
+        mAccountDb = accountDb;
+        mOtpSource = otpSource;
+        mPrecomputer = precomputer;
+        mThread = new HandlerThread("BluetoothSession");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                // Messages posted by the session's reader thread.
+                if ((msg.what == AuthenticatorActivity.MESSAGE_DISCONNECT) && (msg.obj == mSession)) {
+                    onSessionLost();
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Opens the session to the paired desktop, unless it is already open.
+     */
+    public void start() {
+        mHandler.post(mConnectRunnable);
+    }
+
+    /**
+     * Notifies the paired desktop of a knock, opening the session first if necessary.
+     */
+    public void sendKnock() {
+        mHandler.post(mKnockRunnable);
+    }
+
+    /**
+     * Closes the session. This manager must not be used afterwards.
+     */
+    public void close() {
+        mHandler.post(mCloseRunnable);
+    }
+
+    private void connect() {
+        if ((mClosed) || (mSession != null)) {
+            return;
+        }
+        BluetoothDevice device = resolveDevice();
+        if (device == null) {
+            Log.w(LOG_TAG, "No paired desktop to connect to");
+            mPendingKnockTime = -1;
+            return;
+        }
+
+        // Discovery slows down the connection
+        mAdapter.cancelDiscovery();
+        BluetoothSocket socket = null;
+        try {
+            socket = device.createRfcommSocketToServiceRecord(AuthenticatorActivity.OUR_UUID);
+            socket.connect();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not connect");
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) { }
+            }
+            scheduleReconnect();
+            return;
+        }
+
+        mReconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+        mReconnectAttempts = 0;
+        mSession = new AuthenticatorActivity.ConnectedThread(mHandler, socket, getUsers(),
+                mOtpSource);
+        new Thread(mSession, "BluetoothSessionReader").start();
+        if (mPrecomputer != null) {
+            // Requests may arrive at any time while the session is open.
+            mPrecomputer.acquire();
+        }
+        mHandler.postDelayed(mKeepAliveRunnable, KEEP_ALIVE_PERIOD_MILLIS);
+        deliverPendingKnock();
+    }
+
+    /**
+     * Gets the paired device with the saved desktop address, scanning the bonded devices only when
+     * the address has changed or the device was not bonded yet.
+     */
+    private BluetoothDevice resolveDevice() {
+        String address = AuthenticatorActivity.getMAC(mContext);
+        if ((mDevice == null) || (!address.equals(mDeviceAddress))) {
+            mDeviceAddress = address;
+            mDevice = (address.length() > 0)
+                    ? AuthenticatorActivity.getPairedDevice(mAdapter, address) : null;
+        }
+        return mDevice;
+    }
+
+    private void deliverPendingKnock() {
+        if (mPendingKnockTime < 0) {
+            return;
+        }
+        if (SystemClock.elapsedRealtime() - mPendingKnockTime > KNOCK_TIMEOUT_MILLIS) {
+            Log.w(LOG_TAG, "Dropping knock which could not be delivered in time");
+            mPendingKnockTime = -1;
+            return;
+        }
+
+        // Offer the accounts current at the time of the knock.
+        mSession.setUsers(getUsers());
+        if (mSession.write(FrameProtocol.TYPE_KNOCK, null)) {
+            mPendingKnockTime = -1;
+        } else {
+            // The knock is delivered once reconnected, if still recent enough.
+            onSessionLost();
+        }
+    }
+
+    /**
+     * Gets the accounts offered to the desktop, reloading them only if they have been modified
+     * since they were last loaded.
+     */
+    private AuthenticatorActivity.ConnectedThread.IndexedUsers getUsers() {
+        int modificationCount = mAccountDb.getModificationCount();
+        if ((mUsers == null) || (modificationCount != mUsersModificationCount)) {
+            // Read before loading, so that a concurrent modification causes another reload.
+            mUsersModificationCount = modificationCount;
+            mUsers = AuthenticatorActivity.ConnectedThread.IndexedUsers.load(mAccountDb);
+        }
+        return mUsers;
+    }
+
+    private void onSessionLost() {
+        Log.w(LOG_TAG, "Session lost");
+        closeSession();
+        scheduleReconnect();
+    }
+
+    private void closeSession() {
+        mHandler.removeCallbacks(mKeepAliveRunnable);
+        if (mSession != null) {
+            mSession.cancel();
+            mSession = null;
+            if (mPrecomputer != null) {
+                mPrecomputer.release();
+            }
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (mClosed) {
+            return;
+        }
+        mHandler.removeCallbacks(mConnectRunnable);
+        if (mReconnectAttempts >= MAX_RECONNECT_ATTEMPTS) {
+            Log.w(LOG_TAG, "Giving up reconnecting until the next knock");
+            mReconnectAttempts = 0;
+            mReconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+            mPendingKnockTime = -1;
+            return;
+        }
+        Log.w(LOG_TAG, "Reconnecting in " + mReconnectDelayMillis + " ms");
+        mReconnectAttempts++;
+        mHandler.postDelayed(mConnectRunnable, mReconnectDelayMillis);
+        mReconnectDelayMillis = Math.min(2 * mReconnectDelayMillis, MAX_RECONNECT_DELAY_MILLIS);
+    }
+}
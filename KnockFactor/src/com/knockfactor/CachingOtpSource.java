@@ -0,0 +1,235 @@
+package com.knockfactor;
+
+import com.knockfactor.AccountDb.OtpType;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link OtpSource} which caches the TOTP code of each account for the current TOTP interval, so
+ * that the UI and the Bluetooth responders share one computation per account per interval and
+ * never serve a code from an expired interval.
+ * <p/>
+ * <p>Codes are memoized per account and TOTP counter value. They are computed lazily by the
+ * underlying source, and the whole cache is evicted by the first request after the interval rolls
+ * over. HOTP codes are never cached because generating them advances the counter. Cached codes are
+ * also discarded whenever the accounts are modified through {@link AccountDb}.
+ * <p/>
+ * <p>The codes of the next interval can be computed ahead of time with {@link #precompute(long)}
+ * (see {@link TotpCodePrecomputer}). They are swapped in as a whole once the interval begins.
+ * <p/>
+ * <p>Hits, misses and requests bypassing the cache (HOTP, errors) are counted, so that the
+ * effectiveness of the cache can be checked with {@link #toString()}.
+ * <p/>
+ * <p>Thread-safety: thread-safe if the underlying source is.
+ */
+public class CachingOtpSource implements OtpSource {
+
+    private final OtpProvider mDelegate;
+    private final AccountDb mAccountDb;
+
+    /**
+     * Codes of the current interval.
+     */
+    private volatile Codes mCurrent = new Codes(-1, -1);
+
+    /**
+     * Codes precomputed for a later interval or {@code null} if none.
+     *
+     * @GuardedBy {@code this}
+     */
+    private Codes mNext;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mBypassCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    private final AtomicLong mPrecomputedCount = new AtomicLong();
+
+    public CachingOtpSource(OtpProvider delegate, AccountDb accountDb) {
+        mDelegate = delegate;
+        mAccountDb = accountDb;
+    }
+
+    @Override
+    public int enumerateAccounts(Collection<String> result) {
+        return mDelegate.enumerateAccounts(result);
+    }
+
+    @Override
+    public String getNextCode(String accountName) throws OtpSourceException {
+        Codes codes = getCodes(getCurrentInterval(), mAccountDb.getModificationCount());
+        String code = (accountName != null) ? codes.mCodes.get(accountName) : null;
+        if (code != null) {
+            mHitCount.incrementAndGet();
+            return code;
+        }
+
+        Account account = (accountName != null) ? mAccountDb.loadAccount(accountName) : null;
+        if ((account == null) || (account.getType() != OtpType.TOTP)) {
+            // Let the underlying source handle HOTP and report errors.
+            mBypassCount.incrementAndGet();
+            return (account != null)
+                    ? mDelegate.getNextCode(account) : mDelegate.getNextCode(accountName);
+        }
+
+        mMissCount.incrementAndGet();
+        code = mDelegate.getTotpCode(account, codes.mInterval);
+        codes.mCodes.put(accountName, code);
+        return code;
+    }
+
+    @Override
+    public String respondToChallenge(String accountName, String challenge)
+            throws OtpSourceException {
+        return mDelegate.respondToChallenge(accountName, challenge);
+    }
+
+    /**
+     * Gets the TOTP code of the specified account for the provided value of the TOTP counter,
+     * bypassing the cache. Invoking this function does not change any state.
+     *
+     * @throws OtpSourceException if the account does not exist or is not time-based.
+     */
+    public String getTotpCode(String accountName, long counterValue) throws OtpSourceException {
+        return mDelegate.getTotpCode(accountName, counterValue);
+    }
+
+    @Override
+    public TotpCounter getTotpCounter() {
+        return mDelegate.getTotpCounter();
+    }
+
+    @Override
+    public TotpClock getTotpClock() {
+        return mDelegate.getTotpClock();
+    }
+
+    /**
+     * Computes the codes of all time-based accounts for the provided interval, to be used once the
+     * interval begins. Does nothing if the interval has already begun.
+     *
+     * @param interval value of the TOTP counter.
+     */
+    public void precompute(long interval) {
+        int modificationCount = mAccountDb.getModificationCount();
+        Codes codes = new Codes(interval, modificationCount);
+        for (Account account : mAccountDb.loadAll()) {
+            if (account.getType() != OtpType.TOTP) {
+                continue;
+            }
+            try {
+                codes.mCodes.put(account.getName(), mDelegate.getTotpCode(account, interval));
+            } catch (OtpSourceException e) {
+                // Computed on demand instead, reporting the error to the caller.
+            }
+        }
+        synchronized (this) {
+            if (mCurrent.mInterval < interval) {
+                mNext = codes;
+            }
+        }
+    }
+
+    /**
+     * Gets the codes of the provided interval and accounts state, replacing the current codes (by
+     * the precomputed ones if they match) if they are for a different interval or state.
+     */
+    private Codes getCodes(long interval, int modificationCount) {
+        Codes codes = mCurrent;
+        if (codes.isFor(interval, modificationCount)) {
+            return codes;
+        }
+        synchronized (this) {
+            codes = mCurrent;
+            if (codes.isFor(interval, modificationCount)) {
+                return codes;
+            }
+            if ((interval < codes.mInterval) || (modificationCount < codes.mModificationCount)) {
+                // The caller lost a race with the rollover. Don't evict the newer codes.
+                return new Codes(interval, modificationCount);
+            }
+            mEvictionCount.addAndGet(codes.mCodes.size());
+            Codes next = mNext;
+            if ((next != null) && (next.isFor(interval, modificationCount))) {
+                mPrecomputedCount.addAndGet(next.mCodes.size());
+                codes = next;
+            } else {
+                codes = new Codes(interval, modificationCount);
+            }
+            if ((next != null) && (next.mInterval <= interval)) {
+                mNext = null;
+            }
+            mCurrent = codes;
+            return codes;
+        }
+    }
+
+    private long getCurrentInterval() {
+        return getTotpCounter().getValueAtTime(
+                Utilities.millisToSeconds(getTotpClock().currentTimeMillis()));
+    }
+
+    /**
+     * Gets the number of TOTP codes served from the cache.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Gets the number of TOTP codes computed because they were not cached.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Gets the number of requests passed to the underlying source without caching, i.e., for HOTP
+     * codes or unknown accounts.
+     */
+    public long getBypassCount() {
+        return mBypassCount.get();
+    }
+
+    /**
+     * Gets the number of codes evicted at interval boundaries.
+     */
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * Gets the number of precomputed codes swapped in at interval boundaries.
+     */
+    public long getPrecomputedCount() {
+        return mPrecomputedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CachingOtpSource{hits=" + mHitCount + ", misses=" + mMissCount
+                + ", bypassed=" + mBypassCount + ", evicted=" + mEvictionCount
+                + ", precomputed=" + mPrecomputedCount + "}";
+    }
+
+    /**
+     * Codes of the time-based accounts for one interval and state of the accounts.
+     */
+    private static class Codes {
+        private final long mInterval;
+        private final int mModificationCount;
+        private final ConcurrentHashMap<String, String> mCodes =
+                new ConcurrentHashMap<String, String>();
+
+        private Codes(long interval, int modificationCount) {
+            mInterval = interval;
+            mModificationCount = modificationCount;
+        }
+
+        private boolean isFor(long interval, int modificationCount) {
+            return (mInterval == interval) && (mModificationCount == modificationCount);
+        }
+    }
+}
@@ -60,15 +60,16 @@ public class CheckCodeActivity extends Activity {
         String user = extras.getString("user");
 
         AccountDb accountDb = DependencyInjector.getAccountDb();
-        AccountDb.OtpType type = accountDb.getType(user);
+        Account account = accountDb.loadAccount(user);
+        AccountDb.OtpType type = account.getType();
         if (type == AccountDb.OtpType.HOTP) {
-            mCounterValue.setText(accountDb.getCounter(user).toString());
+            mCounterValue.setText(account.getCounter().toString());
             findViewById(R.id.counter_area).setVisibility(View.VISIBLE);
         } else {
             findViewById(R.id.counter_area).setVisibility(View.GONE);
         }
 
-        String secret = accountDb.getSecret(user);
+        String secret = account.getSecret();
         String checkCode = null;
         String errorMessage = null;
         try {
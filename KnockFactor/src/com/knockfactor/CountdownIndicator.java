@@ -23,14 +23,21 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.view.View;
+import android.view.animation.AnimationUtils;
 
 import com.knockfactor2.R;
 
 /**
  * Circular countdown indicator. The indicator is a filled arc which starts as a full circle ({@code
  * 360} degrees) and shrinks to {@code 0} degrees the less time is remaining.
+ * <p/>
+ * <p>The phase is either set explicitly or derived from a shared {@link CountdownPhaseSource} on
+ * every frame drawn until the countdown ends. Frames are only requested once the arc has moved by
+ * a pixel, and not at all while the indicator is not drawn, e.g., because the screen is off.
+ * Drawing does not allocate.
  *
  * @author klyubin@google.com (Alex Klyubin)
  */
@@ -39,12 +46,46 @@ public class CountdownIndicator extends View {
     private final Paint mBorderPaint;
     private static final int DEFAULT_COLOR = 0xff3060c0;
 
+    /**
+     * Interval (milliseconds) between frames below which the next frame is requested right away.
+     */
+    private static final long FRAME_INTERVAL_MILLIS = 16;
+
     /**
      * Countdown phase starting with {@code 1} when a full cycle is remaining and shrinking to
      * {@code 0} the closer the countdown is to zero.
      */
     private double mPhase;
 
+    /**
+     * Phase at which this indicator was last drawn.
+     */
+    private double mDrawnPhase = Double.NaN;
+
+    /**
+     * Bounds of the circle, updated when the size of this view changes.
+     */
+    private final RectF mDrawingRect = new RectF();
+
+    /**
+     * Circumference (pixels) of the circle.
+     */
+    private float mCircumference;
+
+    /**
+     * Source of the phase or {@code null} if the phase is set explicitly.
+     */
+    private CountdownPhaseSource mPhaseSource;
+
+    private boolean mAttached;
+
+    private final Runnable mInvalidator = new Runnable() {
+        @Override
+        public void run() {
+            invalidate();
+        }
+    };
+
     public CountdownIndicator(Context context) {
         this(context, null);
     }
@@ -77,33 +118,72 @@ public class CountdownIndicator extends View {
         mRemainingSectorPaint.setColor(mBorderPaint.getColor());
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        // We need to leave the leftmost column and the topmost row out of the drawingRect because
+        // in anti-aliased mode drawArc and drawOval use these areas for some reason.
+        mDrawingRect.set(1, 1, w - 1, h - 1);
+        mCircumference = (float) (Math.PI * Math.max(0, Math.min(w, h) - 2));
+        mDrawnPhase = Double.NaN;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        mAttached = true;
+        if (mPhaseSource != null) {
+            mPhaseSource.subscribe(this);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        mAttached = false;
+        if (mPhaseSource != null) {
+            mPhaseSource.unsubscribe(this);
+        }
+        removeCallbacks(mInvalidator);
+
+        super.onDetachedFromWindow();
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
+        if ((mPhaseSource != null) && (mPhaseSource.isStarted())) {
+            long now = AnimationUtils.currentAnimationTimeMillis();
+            mPhase = mPhaseSource.getPhase(now);
+            if (mPhaseSource.getEndMillis() > now) {
+                scheduleNextFrame(mPhaseSource.getDurationMillis());
+            }
+        }
+        mDrawnPhase = mPhase;
+
         float remainingSectorSweepAngle = (float) (mPhase * 360);
         float remainingSectorStartAngle = 270 - remainingSectorSweepAngle;
 
         // Draw the sector/filled arc
-        // We need to leave the leftmost column and the topmost row out of the drawingRect because
-        // in anti-aliased mode drawArc and drawOval use these areas for some reason.
-        RectF drawingRect = new RectF(1, 1, getWidth() - 1, getHeight() - 1);
         if (remainingSectorStartAngle < 360) {
             canvas.drawArc(
-                    drawingRect,
+                    mDrawingRect,
                     remainingSectorStartAngle,
                     remainingSectorSweepAngle,
                     true,
                     mRemainingSectorPaint);
         } else {
             // 360 degrees is equivalent to 0 degrees for drawArc, hence the drawOval below.
-            canvas.drawOval(drawingRect, mRemainingSectorPaint);
+            canvas.drawOval(mDrawingRect, mRemainingSectorPaint);
         }
 
         // Draw the outer border
-        canvas.drawOval(drawingRect, mBorderPaint);
+        canvas.drawOval(mDrawingRect, mBorderPaint);
     }
 
     /**
-     * Sets the phase of this indicator.
+     * Sets the phase of this indicator, detaching it from its {@link CountdownPhaseSource}, if any.
+     * Does not redraw the indicator if the arc would move by less than a pixel.
      *
      * @param phase phase {@code [0, 1]}: {@code 1} when the maximum amount of time is remaining,
      *              {@code 0} when no time is remaining.
@@ -113,7 +193,66 @@ public class CountdownIndicator extends View {
             throw new IllegalArgumentException("phase: " + phase);
         }
 
+        setPhaseSource(null);
         mPhase = phase;
+        if (!(Math.abs(phase - mDrawnPhase) * mCircumference < 1)) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Sets the source this indicator takes its phase from while it is attached to a window.
+     *
+     * @param phaseSource source or {@code null} to have the phase set explicitly.
+     */
+    public void setPhaseSource(CountdownPhaseSource phaseSource) {
+        if (phaseSource == mPhaseSource) {
+            return;
+        }
+
+        if ((mAttached) && (mPhaseSource != null)) {
+            mPhaseSource.unsubscribe(this);
+        }
+        mPhaseSource = phaseSource;
+        if ((mAttached) && (mPhaseSource != null)) {
+            mPhaseSource.subscribe(this);
+        }
+        removeCallbacks(mInvalidator);
         invalidate();
     }
+
+    /**
+     * Invoked by the {@link CountdownPhaseSource} when it starts a new countdown cycle.
+     */
+    void onCountdownStarted() {
+        removeCallbacks(mInvalidator);
+        invalidate();
+    }
+
+    /**
+     * Requests the frame in which the arc has moved by a pixel.
+     *
+     * @param durationMillis duration (milliseconds) of a full countdown cycle.
+     */
+    private void scheduleNextFrame(long durationMillis) {
+        if (mCircumference <= 0) {
+            // Drawn again once laid out.
+            return;
+        }
+        long millisPerPixel = (long) (durationMillis / mCircumference);
+        if (millisPerPixel <= FRAME_INTERVAL_MILLIS) {
+            invalidateOnNextFrame();
+        } else {
+            removeCallbacks(mInvalidator);
+            postDelayed(mInvalidator, millisPerPixel);
+        }
+    }
+
+    private void invalidateOnNextFrame() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postInvalidateOnAnimation();
+        } else {
+            invalidate();
+        }
+    }
 }
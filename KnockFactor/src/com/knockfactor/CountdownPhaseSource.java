@@ -0,0 +1,85 @@
+package com.knockfactor;
+
+import android.view.animation.AnimationUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Countdown shared by any number of {@link CountdownIndicator}s. The owner starts each countdown
+ * cycle once, and the subscribed indicators derive their phase from it while they are drawn,
+ * instead of having a phase pushed into each of them.
+ * <p/>
+ * <p>Thread-safety: must be used on the UI thread only.
+ */
+public class CountdownPhaseSource {
+
+    private final List<CountdownIndicator> mIndicators = new ArrayList<CountdownIndicator>();
+
+    /**
+     * Animation time (milliseconds, see {@link AnimationUtils#currentAnimationTimeMillis()}) at
+     * which the countdown reaches zero.
+     */
+    private long mEndMillis;
+
+    /**
+     * Duration (milliseconds) of a full countdown cycle or {@code 0} if not started yet.
+     */
+    private long mDurationMillis;
+
+    /**
+     * Starts a countdown cycle and redraws the subscribed indicators.
+     *
+     * @param endMillis      time (milliseconds, see
+     *                       {@link AnimationUtils#currentAnimationTimeMillis()}) at which the
+     *                       countdown reaches zero.
+     * @param durationMillis duration (milliseconds) of a full countdown cycle.
+     */
+    public void start(long endMillis, long durationMillis) {
+        if (durationMillis <= 0) {
+            throw new IllegalArgumentException("duration: " + durationMillis);
+        }
+
+        mEndMillis = endMillis;
+        mDurationMillis = durationMillis;
+        for (int i = 0, len = mIndicators.size(); i < len; i++) {
+            mIndicators.get(i).onCountdownStarted();
+        }
+    }
+
+    boolean isStarted() {
+        return mDurationMillis > 0;
+    }
+
+    long getEndMillis() {
+        return mEndMillis;
+    }
+
+    long getDurationMillis() {
+        return mDurationMillis;
+    }
+
+    /**
+     * Gets the phase of the countdown at the provided animation time.
+     *
+     * @return phase {@code [0, 1]}: {@code 1} when the full cycle is remaining, {@code 0} when no
+     *         time is remaining or the countdown has not been started.
+     */
+    double getPhase(long nowMillis) {
+        if (mDurationMillis <= 0) {
+            return 0;
+        }
+        double phase = ((double) (mEndMillis - nowMillis)) / mDurationMillis;
+        return Math.min(1.0, Math.max(0.0, phase));
+    }
+
+    void subscribe(CountdownIndicator indicator) {
+        if (!mIndicators.contains(indicator)) {
+            mIndicators.add(indicator);
+        }
+    }
+
+    void unsubscribe(CountdownIndicator indicator) {
+        mIndicators.remove(indicator);
+    }
+}
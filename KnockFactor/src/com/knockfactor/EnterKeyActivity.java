@@ -81,8 +81,7 @@ public class EnterKeyActivity extends WizardPageActivity<Serializable> implement
     private boolean validateKeyAndUpdateStatus(boolean submitting) {
         String userEnteredKey = getEnteredKey();
         try {
-            byte[] decoded = Base32String.decode(userEnteredKey);
-            if (decoded.length < MIN_KEY_BYTES) {
+            if (Base32String.getDecodedLength(userEnteredKey) < MIN_KEY_BYTES) {
                 // If the user is trying to submit a key that's too short, then
                 // display a message saying it's too short.
                 mKeyEntryField.setError(submitting ? getString(R.string.enter_key_too_short) : null);
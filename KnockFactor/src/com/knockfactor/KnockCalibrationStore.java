@@ -0,0 +1,70 @@
+package com.knockfactor;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Sensor;
+import android.preference.PreferenceManager;
+
+/**
+ * Persists the noise statistics learned by a {@link KnockThresholdCalibrator}, so that calibrated
+ * knock thresholds survive restarts instead of being learned again each time.
+ * <p/>
+ * <p>The statistics are only valid for the accelerometer they were learned on: they are discarded
+ * when loaded on a different sensor (e.g., after restoring a backup onto another device).
+ */
+class KnockCalibrationStore {
+
+    // @VisibleForTesting
+    static final String PREFERENCE_KEY_SENSOR = "knockCalibrationSensor";
+
+    // @VisibleForTesting
+    static final String PREFERENCE_KEY_PREFIX = "knockCalibration.";
+
+    private final SharedPreferences mPreferences;
+    private final String mSensorId;
+
+    /**
+     * @param sensor accelerometer the statistics are learned on.
+     */
+    KnockCalibrationStore(Context context, Sensor sensor) {
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mSensorId = sensor.getVendor() + "/" + sensor.getName();
+    }
+
+    /**
+     * Restores the statistics saved for this sensor into the calibrator, if any.
+     */
+    void load(KnockThresholdCalibrator calibrator) {
+        if (!mSensorId.equals(mPreferences.getString(PREFERENCE_KEY_SENSOR, null))) {
+            return;
+        }
+        for (int position = 0; position < KnockThresholdCalibrator.POSITION_COUNT; position++) {
+            long count = mPreferences.getLong(getKey(position, "count"), 0);
+            if (count == 0) {
+                continue;
+            }
+            calibrator.restore(position, count,
+                    mPreferences.getFloat(getKey(position, "mean"), 0),
+                    mPreferences.getFloat(getKey(position, "variance"), 0));
+        }
+    }
+
+    /**
+     * Saves the statistics of the calibrator, asynchronously.
+     */
+    void save(KnockThresholdCalibrator calibrator) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putString(PREFERENCE_KEY_SENSOR, mSensorId);
+        for (int position = 0; position < KnockThresholdCalibrator.POSITION_COUNT; position++) {
+            RunningStatistics statistics = calibrator.getStatistics(position);
+            editor.putLong(getKey(position, "count"), statistics.getCount());
+            editor.putFloat(getKey(position, "mean"), (float) statistics.getMean());
+            editor.putFloat(getKey(position, "variance"), (float) statistics.getVariance());
+        }
+        editor.apply();
+    }
+
+    private static String getKey(int position, String name) {
+        return PREFERENCE_KEY_PREFIX + position + "." + name;
+    }
+}
@@ -1,96 +1,469 @@
 package com.knockfactor;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.os.CountDownTimer;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Listens to the accelerometer and reports the double knocks detected by a {@link KnockDetector}.
+ * <p/>
+ * <p>To keep knock detection cheap enough to stay on all day, the accelerometer is registered
+ * only while the screen is on and, on devices with a significant motion sensor, for
+ * {@link #MOTION_WINDOW_MILLIS} after significant motion while the screen is off. Otherwise only
+ * the (hardware, one-shot) significant motion trigger is armed.
+ * <p/>
+ * <p>On API 19+ samples are batched in the sensor's hardware FIFO for up to
+ * {@link #MAX_REPORT_LATENCY_MICROS}, so the application processor wakes up once per batch rather
+ * than once per sample. The batch is then delivered in one pass through
+ * {@link #onSensorChanged(SensorEvent)}, which does not allocate and notifies the listener only on
+ * a detected knock. Detection depends on the samples' timestamps only, so batched samples are
+ * detected exactly like samples delivered right away.
+ * <p/>
+ * <p>Samples are delivered to, and knocks detected on, a dedicated high-priority
+ * {@link HandlerThread} which runs while this listener is started, so a busy UI thread cannot
+ * delay detection and the consumer of the knocks cannot stall the sensor. Detected knocks are
+ * handed to the {@link Listener}'s thread through a lock-free {@link KnockEventQueue}.
+ * <p/>
+ * <p>The knock thresholds are calibrated to the noise floor of the device's accelerometer by a
+ * {@link KnockThresholdCalibrator}, whose statistics are saved in a {@link KnockCalibrationStore}
+ * whenever the accelerometer is unregistered and loaded again on creation.
+ * <p/>
+ * <p>On devices without an accelerometer this listener does nothing.
+ * <p/>
+ * <p>Debug builds can {@link #startRecording(File) record} the samples, for replaying them
+ * off-device with {@code KnockTraceReplay}. {@link AuthenticatorActivity} only records when started
+ * with {@link AuthenticatorActivity#EXTRA_RECORD_KNOCK_TRACE}.
+ * <p/>
+ * <p>Thread-safety: the public methods must be used on the thread of a {@link Looper}, which
+ * also receives the screen and significant motion events. The detector, the calibrator and the
+ * recording are confined to the sensor thread.
+ */
 public class KnockEventListener implements SensorEventListener {
 
-    private SensorManager mSensorManager;
-    private Sensor mAcceleromator;
-    public boolean knockDetected = false;
-    float prevZ;
-    float currZ;
-    float diffZ;
-    float minZ;
-    float maxZ;
-
-    final int millisInFuture = 2000; // milliseconds
-    final long countDownInterval = 1000;
-    private int numKnocks = 0;
-    private MyCountDownTimer mCountDownTimer;
-
-    KnockEventListener(SensorManager sm) {
-        mSensorManager = sm;
-        if (mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) != null) {
-            mAcceleromator = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+    /**
+     * Listener notified of detected knocks.
+     */
+    interface Listener {
+
+        /**
+         * Invoked, on the thread of the listener's {@link Handler}, when a double knock is
+         * detected.
+         *
+         * @param timestampNanos time (nanoseconds, as in {@link SensorEvent#timestamp}) of the
+         *                       sample which completed the double knock.
+         */
+        void onKnock(long timestampNanos);
+    }
+
+    /**
+     * Longest time (microseconds) samples may be held in the hardware FIFO before being delivered.
+     */
+    static final int MAX_REPORT_LATENCY_MICROS = 500 * 1000;
+
+    /**
+     * Time (milliseconds) for which the accelerometer is registered after significant motion while
+     * the screen is off.
+     */
+    static final long MOTION_WINDOW_MILLIS = 30 * 1000;
+
+    /**
+     * Largest number of knocks waiting for the listener. Knocks are seconds apart, so this is only
+     * reached if the listener's thread is stuck, and then further knocks are dropped.
+     */
+    static final int KNOCK_QUEUE_CAPACITY = 16;
+
+    /**
+     * Largest number of trace files kept in the directory recorded into, including the one being
+     * recorded. Older ones are deleted when recording starts.
+     */
+    static final int MAX_TRACE_FILES = 5;
+
+    /**
+     * Accelerometer sampling rate: fast enough to catch the short impact of a knock. Batching keeps
+     * the higher rate from waking the application processor more often.
+     */
+    private static final int SAMPLING_RATE = SensorManager.SENSOR_DELAY_GAME;
+
+    private static final String LOG_TAG = "KnockEventListener";
+
+    private final Context mContext;
+    private final SensorManager mSensorManager;
+
+    /**
+     * Accelerometer or {@code null} if the device has none.
+     */
+    private final Sensor mAccelerometer;
+
+    /**
+     * Significant motion sensor or {@code null} if the device has none.
+     */
+    private final Sensor mSignificantMotion;
+
+    /**
+     * Calibrator, store and detector of the accelerometer or {@code null} if the device has none.
+     */
+    private final KnockThresholdCalibrator mCalibrator;
+    private final KnockCalibrationStore mCalibrationStore;
+    private final KnockDetector mDetector;
+    private final Handler mHandler = new Handler();
+    private final Listener mListener;
+    private final Handler mListenerHandler;
+    private final KnockEventQueue mKnocks = new KnockEventQueue(KNOCK_QUEUE_CAPACITY);
+
+    /**
+     * Whether {@link #mDrainKnocks} is posted to the listener's handler and has not started
+     * draining {@link #mKnocks} yet.
+     */
+    private final AtomicBoolean mDrainPending = new AtomicBoolean();
+
+    private boolean mStarted;
+    private boolean mScreenOn;
+    private boolean mInMotionWindow;
+    private boolean mAccelerometerRegistered;
+    private TriggerEventListener mSignificantMotionListener;
+
+    /**
+     * Thread receiving the samples or {@code null} if not started.
+     */
+    private HandlerThread mSensorThread;
+    private Handler mSensorHandler;
+
+    /**
+     * Whether the detector must forget its samples before processing the next one, because the
+     * accelerometer was off in between. Set on this listener's thread, cleared on the sensor
+     * thread.
+     */
+    private volatile boolean mResetPending;
+
+    /**
+     * Writer recording the samples and detected knocks or {@code null} if not recording. Only
+     * accessed on the sensor thread.
+     */
+    private SensorTraceWriter mTraceWriter;
+
+    private final BroadcastReceiver mScreenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mScreenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+            update();
+        }
+    };
+
+    private final Runnable mMotionWindowEnd = new Runnable() {
+        @Override
+        public void run() {
+            mInMotionWindow = false;
+            update();
+        }
+    };
+
+    private final Runnable mSaveCalibration = new Runnable() {
+        @Override
+        public void run() {
+            mCalibrationStore.save(mCalibrator);
+        }
+    };
+
+    private final Runnable mStopRecording = new Runnable() {
+        @Override
+        public void run() {
+            closeTraceWriter();
+        }
+    };
+
+    private final Runnable mDrainKnocks = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared before draining, so that a knock offered meanwhile posts another drain.
+            mDrainPending.set(false);
+            for (long knock = mKnocks.poll(); knock != KnockEventQueue.EMPTY;
+                 knock = mKnocks.poll()) {
+                mListener.onKnock(knock);
+            }
+        }
+    };
+
+    /**
+     * @param listener listener notified of detected knocks.
+     * @param handler  handler on whose thread the listener is notified.
+     */
+    KnockEventListener(Context context, Listener listener, Handler handler) {
+        mContext = context;
+        mListener = listener;
+        mListenerHandler = handler;
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        if (mAccelerometer == null) {
+            Log.w(LOG_TAG, "No accelerometer: knocks cannot be detected");
+            mCalibrator = null;
+            mCalibrationStore = null;
+            mDetector = null;
         } else {
+            mCalibrator = new KnockThresholdCalibrator(mAccelerometer.getMaximumRange());
+            mCalibrationStore = new KnockCalibrationStore(context, mAccelerometer);
+            mCalibrationStore.load(mCalibrator);
+            mDetector = new KnockDetector(SignalPipeline.createCalibrated(mCalibrator),
+                    KnockDetector.DEFAULT_MIN_GAP_NANOS, KnockDetector.DEFAULT_MAX_GAP_NANOS);
+        }
+        mSignificantMotion = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+                ? mSensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION)
+                : null;
+    }
 
+    /**
+     * Starts listening for knocks. Does nothing if the device has no accelerometer.
+     */
+    public void start() {
+        if (mStarted || (mAccelerometer == null)) {
+            return;
         }
-        mSensorManager.registerListener(this, mAcceleromator, SensorManager.SENSOR_DELAY_NORMAL);
-        currZ = 0;
-        minZ = 2;
-        maxZ = 7;
+        mStarted = true;
+        mSensorThread = new HandlerThread("KnockSensor", Process.THREAD_PRIORITY_DISPLAY);
+        mSensorThread.start();
+        mSensorHandler = new Handler(mSensorThread.getLooper());
+        IntentFilter screenStateFilter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+        screenStateFilter.addAction(Intent.ACTION_SCREEN_ON);
+        mContext.registerReceiver(mScreenStateReceiver, screenStateFilter);
+        mScreenOn = ((PowerManager) mContext.getSystemService(Context.POWER_SERVICE)).isScreenOn();
+        update();
     }
 
+    /**
+     * Stops listening for knocks and releases the sensors. Knocks already detected may still be
+     * reported afterwards.
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mContext.unregisterReceiver(mScreenStateReceiver);
+        mHandler.removeCallbacks(mMotionWindowEnd);
+        mInMotionWindow = false;
+        update();
+        // Queued behind the calibration save and any samples still being delivered.
+        final HandlerThread sensorThread = mSensorThread;
+        mSensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeTraceWriter();
+                sensorThread.quit();
+            }
+        });
+        mSensorThread = null;
+        mSensorHandler = null;
+    }
 
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-        float x = Math.abs(event.values[0]);
-        float y = Math.abs(event.values[1]);
-        float z = Math.abs(event.values[2]);
-
-        prevZ = currZ;
-        currZ = z;
-        diffZ = Math.abs(currZ - prevZ);
-
-        if (diffZ > minZ && diffZ < maxZ) {
-            if (numKnocks == 1 && !mCountDownTimer.finished) {
-                knockDetected = true;
-                numKnocks = 0;
-            } else if (numKnocks == 0) {
-                mCountDownTimer = new MyCountDownTimer(millisInFuture, countDownInterval);
-                mCountDownTimer.start();
-                numKnocks++;
+    /**
+     * Starts recording the samples and detected knocks into a trace file, for debugging. Recording
+     * allocates for every sample. Recording stops when this listener stops. Does nothing if the
+     * device has no accelerometer.
+     * <p/>
+     * <p>Only the newest {@link #MAX_TRACE_FILES} files of the directory are kept: the oldest
+     * ones are deleted before the new file is created.
+     *
+     * @param file file to write, created along with its parent directories if necessary.
+     */
+    void startRecording(final File file) {
+        if (mAccelerometer == null) {
+            return;
+        }
+        Preconditions.checkState(mStarted, "Not started");
+        mSensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeTraceWriter();
+                File directory = file.getParentFile();
+                directory.mkdirs();
+                deleteOldTraces(directory, MAX_TRACE_FILES - 1);
+                try {
+                    mTraceWriter = new SensorTraceWriter(
+                            new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+                    Log.i(LOG_TAG, "Recording sensor trace to " + file);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to record sensor trace to " + file, e);
+                }
             }
+        });
+    }
+
+    /**
+     * Stops recording, if recording.
+     */
+    void stopRecording() {
+        if (mStarted) {
+            mSensorHandler.post(mStopRecording);
         }
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int i) {
+    /**
+     * Deletes the oldest (least recently modified) files of the directory, leaving at most the
+     * provided number of files.
+     */
+    private static void deleteOldTraces(File directory, int keepCount) {
+        File[] files = directory.listFiles();
+        if ((files == null) || (files.length <= keepCount)) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long lastModifiedA = a.lastModified();
+                long lastModifiedB = b.lastModified();
+                return (lastModifiedA < lastModifiedB) ? -1
+                        : ((lastModifiedA == lastModifiedB) ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length - keepCount; i++) {
+            if (!files[i].delete()) {
+                Log.w(LOG_TAG, "Failed to delete old sensor trace " + files[i]);
+            }
+        }
+    }
 
+    /**
+     * Closes the trace writer, if recording. Invoked on the sensor thread.
+     */
+    private void closeTraceWriter() {
+        if (mTraceWriter == null) {
+            return;
+        }
+        try {
+            mTraceWriter.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to close sensor trace", e);
+        }
+        mTraceWriter = null;
     }
 
-    public void pauseListener() {
-        mSensorManager.unregisterListener(this);
+    /**
+     * Processes a sample, on the sensor thread.
+     */
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        if (mResetPending) {
+            mResetPending = false;
+            mDetector.reset();
+        }
+        boolean knock = mDetector.onSample(event.timestamp, event.values[0], event.values[1],
+                event.values[2]);
+        if (mTraceWriter != null) {
+            record(event, knock);
+        }
+        if (knock) {
+            publish(event.timestamp);
+        }
     }
 
-    public void resumeListener() {
-        mSensorManager.registerListener(this, mAcceleromator, SensorManager.SENSOR_DELAY_NORMAL);
+    /**
+     * Hands a detected knock over to the listener's thread.
+     */
+    private void publish(long timestampNanos) {
+        if (!mKnocks.offer(timestampNanos)) {
+            Log.w(LOG_TAG, "Knock dropped: listener is not keeping up");
+            return;
+        }
+        if (mDrainPending.compareAndSet(false, true)) {
+            mListenerHandler.post(mDrainKnocks);
+        }
     }
 
-    private class MyCountDownTimer extends CountDownTimer {
+    private void record(SensorEvent event, boolean knock) {
+        try {
+            mTraceWriter.writeSample(event.timestamp, event.values[0], event.values[1],
+                    event.values[2]);
+            if (knock) {
+                mTraceWriter.writeDetection(event.timestamp);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to record sensor trace", e);
+            closeTraceWriter();
+        }
+    }
 
-        boolean finished;
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int i) {
 
-        public MyCountDownTimer(long millisInFuture, long countDownInterval) {
-            super(millisInFuture, countDownInterval);
-            finished = false;
-        }
+    }
 
-        @Override
-        public void onTick(long l) {
+    /**
+     * Registers the sensors required in the current state and unregisters the others.
+     */
+    private void update() {
+        boolean listen = mStarted && (mScreenOn || mInMotionWindow);
+        setAccelerometerRegistered(listen);
+        setSignificantMotionRequested(mStarted && !listen);
+    }
 
+    private void setAccelerometerRegistered(boolean registered) {
+        if (registered == mAccelerometerRegistered) {
+            return;
+        }
+        mAccelerometerRegistered = registered;
+        if (!registered) {
+            mSensorManager.unregisterListener(this, mAccelerometer);
+            // No samples until registered again: a good time to keep what was learned so far.
+            mSensorHandler.post(mSaveCalibration);
+            return;
         }
 
-        @Override
-        public void onFinish() {
-            finished = true;
+        // Samples from before the sensor was off are too old to be part of a double knock.
+        mResetPending = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            mSensorManager.registerListener(this, mAccelerometer, SAMPLING_RATE,
+                    MAX_REPORT_LATENCY_MICROS, mSensorHandler);
+        } else {
+            mSensorManager.registerListener(this, mAccelerometer, SAMPLING_RATE, mSensorHandler);
         }
     }
-}
\ No newline at end of file
+
+    private void setSignificantMotionRequested(boolean requested) {
+        if ((mSignificantMotion == null) || (requested == (mSignificantMotionListener != null))) {
+            return;
+        }
+        if (!requested) {
+            mSensorManager.cancelTriggerSensor(mSignificantMotionListener, mSignificantMotion);
+            mSignificantMotionListener = null;
+            return;
+        }
+
+        mSignificantMotionListener = new TriggerEventListener() {
+            @Override
+            public void onTrigger(TriggerEvent event) {
+                if (mSignificantMotionListener != this) {
+                    // Cancelled in the meantime.
+                    return;
+                }
+                // Trigger sensors are disarmed once they fire.
+                mSignificantMotionListener = null;
+                mInMotionWindow = true;
+                mHandler.removeCallbacks(mMotionWindowEnd);
+                mHandler.postDelayed(mMotionWindowEnd, MOTION_WINDOW_MILLIS);
+                update();
+            }
+        };
+        mSensorManager.requestTriggerSensor(mSignificantMotionListener, mSignificantMotion);
+    }
+}
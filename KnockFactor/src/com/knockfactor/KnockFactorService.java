@@ -1,9 +1,7 @@
 package com.knockfactor;
 
 import android.app.IntentService;
-import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
-import android.os.Handler;
 
 import com.knockfactor.testability.DependencyInjector;
 
@@ -11,19 +9,12 @@ public class KnockFactorService extends IntentService {
 
     public static final String STATUS = "com.knockfactor.knockfactorservice.STATUS";
 
-    private AuthenticatorActivity.ConnectThread mConnectThread;
-    private AccountDb mAccountDb;
-    private BluetoothAdapter mBTAdapter;
-    private AuthenticatorActivity.PinInfo[] mUsers;
-    private OtpSource mOtpSource;
+    private BluetoothSessionManager mSessionManager;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        mAccountDb = DependencyInjector.getAccountDb();
-        mOtpSource = DependencyInjector.getOtpProvider();
-        mBTAdapter = BluetoothAdapter.getDefaultAdapter();
-        mUsers = AuthenticatorActivity.getUsers(mAccountDb, mOtpSource);
+        mSessionManager = DependencyInjector.getBluetoothSessionManager();
     }
 
     public KnockFactorService () {
@@ -33,11 +24,9 @@ public class KnockFactorService extends IntentService {
     @Override
     protected void onHandleIntent(Intent intent) {
         boolean knockDetected = intent.getBooleanExtra("STATUS", false);
-        if (knockDetected) {
-            mConnectThread = new AuthenticatorActivity.ConnectThread(getApplicationContext(), mBTAdapter,
-                    AuthenticatorActivity.getPairedDevice(mBTAdapter, AuthenticatorActivity.getMAC(this)),
-                    new Handler(), mUsers);
-            mConnectThread.start();
+        if (knockDetected && (mSessionManager != null)) {
+            // The session outlives this service, so that later knocks reuse the open connection.
+            mSessionManager.sendKnock();
         }
     }
 }
@@ -17,7 +17,7 @@
 package com.knockfactor;
 
 import com.knockfactor.AccountDb.OtpType;
-import com.knockfactor.PasscodeGenerator.Signer;
+import com.knockfactor.Base32String.DecodingException;
 
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
@@ -62,6 +62,40 @@ public class OtpProvider implements OtpSource {
         }
     }
 
+    /**
+     * Gets the TOTP code of the specified account for the provided value of the TOTP counter,
+     * e.g., to compute codes ahead of time. Invoking this function does not change any state.
+     *
+     * @param accountName  Username, email address or other unique identifier for the account.
+     * @param counterValue value of the {@link #getTotpCounter() TOTP counter}.
+     * @return OTP as string code.
+     * @throws OtpSourceException if the account does not exist or is not time-based.
+     */
+    public String getTotpCode(String accountName, long counterValue) throws OtpSourceException {
+        Account account = (accountName != null) ? mAccountDb.loadAccount(accountName) : null;
+        if (account == null) {
+            throw new OtpSourceException("No such account");
+        }
+        return getTotpCode(account, counterValue);
+    }
+
+    /**
+     * Same as {@link #getTotpCode(String, long)} for an account already loaded by the caller.
+     */
+    public String getTotpCode(Account account, long counterValue) throws OtpSourceException {
+        if (account.getType() != OtpType.TOTP) {
+            throw new OtpSourceException("Not a time-based account");
+        }
+        return computePin(account.getName(), account.getSecret(), counterValue, null);
+    }
+
+    /**
+     * Same as {@link #getNextCode(String)} for an account already loaded by the caller.
+     */
+    public String getNextCode(Account account) throws OtpSourceException {
+        return getCurrentCode(account, null);
+    }
+
     @Override
     public TotpCounter getTotpCounter() {
         return mTotpCounter;
@@ -78,8 +112,16 @@ public class OtpProvider implements OtpSource {
             throw new OtpSourceException("No account name");
         }
 
-        OtpType type = mAccountDb.getType(username);
-        String secret = getSecret(username);
+        Account account = mAccountDb.loadAccount(username);
+        if (account == null) {
+            throw new OtpSourceException("No such account");
+        }
+        return getCurrentCode(account, challenge);
+    }
+
+    private String getCurrentCode(Account account, byte[] challenge) throws OtpSourceException {
+        String username = account.getName();
+        OtpType type = account.getType();
 
         long otp_state = 0;
 
@@ -89,12 +131,14 @@ public class OtpProvider implements OtpSource {
                     mTotpCounter.getValueAtTime(Utilities.millisToSeconds(mTotpClock.currentTimeMillis()));
         } else if (type == OtpType.HOTP) {
             // For counter-based OTP, the state is obtained by incrementing stored counter.
-            mAccountDb.incrementCounter(username);
-            Integer counter = mAccountDb.getCounter(username);
+            Integer counter = mAccountDb.incrementCounter(username);
+            if (counter == null) {
+                throw new OtpSourceException("No such account");
+            }
             otp_state = counter.longValue();
         }
 
-        return computePin(secret, otp_state, challenge);
+        return computePin(username, account.getSecret(), otp_state, challenge);
     }
 
     public OtpProvider(AccountDb accountDb, TotpClock totpClock) {
@@ -108,27 +152,26 @@ public class OtpProvider implements OtpSource {
     }
 
     /**
-     * Computes the one-time PIN given the secret key.
+     * Computes the one-time PIN given the secret key. The keyed signer is cached per account by
+     * {@link AccountDb}.
      *
+     * @param username  the account name
      * @param secret    the secret key
      * @param otp_state current token state (counter or time-interval)
      * @param challenge optional challenge bytes to include when computing passcode.
      * @return the PIN
      */
-    private String computePin(String secret, long otp_state, byte[] challenge)
+    private String computePin(String username, String secret, long otp_state, byte[] challenge)
             throws OtpSourceException {
         if (secret == null || secret.length() == 0) {
             throw new OtpSourceException("Null or empty secret");
         }
 
         try {
-            Signer signer = AccountDb.getSigningOracle(secret);
-            PasscodeGenerator pcg = new PasscodeGenerator(signer,
-                    (challenge == null) ? PIN_LENGTH : REFLECTIVE_PIN_LENGTH);
-
-            return (challenge == null) ?
-                    pcg.generateResponseCode(otp_state) :
-                    pcg.generateResponseCode(otp_state, challenge);
+            return mAccountDb.getSignerCache().generateResponseCode(username, secret,
+                    (challenge == null) ? PIN_LENGTH : REFLECTIVE_PIN_LENGTH, otp_state, challenge);
+        } catch (DecodingException e) {
+            throw new OtpSourceException("Invalid secret", e);
         } catch (GeneralSecurityException e) {
             throw new OtpSourceException("Crypto failure", e);
         }
@@ -147,7 +190,7 @@ public class OtpProvider implements OtpSource {
     /**
      * Default passcode timeout period (in seconds)
      */
-    public static final int DEFAULT_INTERVAL = 30;
+    public static final int DEFAULT_INTERVAL = PasscodeGenerator.INTERVAL;
 
     private final AccountDb mAccountDb;
 
@@ -0,0 +1,314 @@
+package com.knockfactor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.knockfactor.AccountDb.OtpType;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads the accounts and computes their current verification codes on a background thread, so
+ * that refreshing the account list of {@link AuthenticatorActivity} does not block the UI thread on
+ * database queries and HMAC computations.
+ * <p/>
+ * <p>A {@link #refresh(boolean, int, int) refresh} loads all accounts but computes codes only for
+ * a range of positions, normally the rows visible in the list plus a margin. Codes of the other
+ * rows are {@link #loadCodes(int, String[]) loaded} as they scroll into view, typically from the
+ * interval cache of {@link CachingOtpSource}.
+ * <p/>
+ * <p>Each refresh supersedes all earlier requests: requests which are still running stop between
+ * accounts and their results are never delivered. Results are delivered to the {@link Listener}
+ * on the thread of the provided {@link Looper} as immutable objects.
+ * <p/>
+ * <p>HOTP codes are never computed here because computing them advances the counter.
+ * <p/>
+ * <p>Thread-safety: {@link #refresh(boolean, int, int)}, {@link #loadCodes(int, String[])} and
+ * {@link #close()} must be invoked on the thread of the provided {@link Looper}.
+ */
+class PinListLoader {
+
+    /**
+     * Listener notified of loaded account lists and codes.
+     */
+    interface Listener {
+
+        /**
+         * Invoked on the thread of the loader's {@link Looper} when the account list was loaded.
+         */
+        void onPinListLoaded(Snapshot snapshot);
+
+        /**
+         * Invoked on the thread of the loader's {@link Looper} when the codes requested with
+         * {@link PinListLoader#loadCodes(int, String[])} were computed.
+         */
+        void onCodesLoaded(Codes codes);
+    }
+
+    private final AccountDb mAccountDb;
+    private final OtpSource mOtpSource;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Incremented by each refresh to cancel the earlier requests. Written on the thread of the
+     * {@link Looper} only.
+     */
+    private volatile int mGeneration;
+
+    /**
+     * Most recent refresh whose result has not been delivered yet or {@code null} if none.
+     */
+    private Refresh mPendingRefresh;
+
+    PinListLoader(AccountDb accountDb, OtpSource otpSource, Looper looper, Listener listener) {
+        mAccountDb = accountDb;
+        mOtpSource = otpSource;
+        mHandler = new Handler(looper);
+        mListener = listener;
+    }
+
+    /**
+     * Loads the account list, cancelling all requests in progress.
+     *
+     * @param accountModified whether the accounts were modified, in which case the list must be
+     *                        rebuilt.
+     * @param firstPosition   position of the first account whose code is computed.
+     * @param lastPosition    position of the last account whose code is computed.
+     */
+    void refresh(boolean accountModified, int firstPosition, int lastPosition) {
+        if (mPendingRefresh != null) {
+            // The superseded refresh may have been the one asked to rebuild the list.
+            accountModified |= mPendingRefresh.mAccountModified;
+        }
+        mGeneration++;
+        mPendingRefresh = new Refresh(mGeneration, accountModified, firstPosition, lastPosition);
+        mExecutor.execute(mPendingRefresh);
+    }
+
+    /**
+     * Computes the codes of time-based accounts which were left out by the latest refresh.
+     *
+     * @param firstPosition position of the first account in the list.
+     * @param names         names of the accounts at the consecutive positions.
+     */
+    void loadCodes(int firstPosition, String[] names) {
+        mExecutor.execute(new CodeLoad(mGeneration, firstPosition, names));
+    }
+
+    /**
+     * Cancels all requests in progress and stops the background thread. No results are delivered
+     * afterwards.
+     */
+    void close() {
+        mGeneration++;
+        mPendingRefresh = null;
+        mExecutor.shutdownNow();
+    }
+
+    private boolean isCancelled(int generation) {
+        return mGeneration != generation;
+    }
+
+    private String computeCode(String name) {
+        try {
+            return mOtpSource.getNextCode(name);
+        } catch (OtpSourceException e) {
+            return null;
+        }
+    }
+
+    private class Refresh implements Runnable {
+        private final int mRequestGeneration;
+        private final boolean mAccountModified;
+        private final int mFirstPosition;
+        private final int mLastPosition;
+
+        private Refresh(int generation, boolean accountModified, int firstPosition,
+                        int lastPosition) {
+            mRequestGeneration = generation;
+            mAccountModified = accountModified;
+            mFirstPosition = firstPosition;
+            mLastPosition = lastPosition;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled(mRequestGeneration)) {
+                return;
+            }
+            List<Account> accounts = mAccountDb.loadAll();
+            int count = accounts.size();
+            String[] names = new String[count];
+            boolean[] hotp = new boolean[count];
+            String[] codes = new String[count];
+            for (int i = 0; i < count; i++) {
+                Account account = accounts.get(i);
+                names[i] = account.getName();
+                hotp[i] = (account.getType() == OtpType.HOTP);
+            }
+            int firstPosition = Math.max(0, mFirstPosition);
+            int lastPosition = Math.min(count - 1, mLastPosition);
+            for (int i = firstPosition; i <= lastPosition; i++) {
+                if (isCancelled(mRequestGeneration)) {
+                    return;
+                }
+                if (!hotp[i]) {
+                    codes[i] = computeCode(names[i]);
+                }
+            }
+
+            final Snapshot snapshot = new Snapshot(mAccountModified, names, hotp, codes,
+                    firstPosition, lastPosition);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if ((isCancelled(mRequestGeneration)) || (mPendingRefresh != Refresh.this)) {
+                        return;
+                    }
+                    mPendingRefresh = null;
+                    mListener.onPinListLoaded(snapshot);
+                }
+            });
+        }
+    }
+
+    private class CodeLoad implements Runnable {
+        private final int mRequestGeneration;
+        private final int mFirstPosition;
+        private final String[] mNames;
+
+        private CodeLoad(int generation, int firstPosition, String[] names) {
+            mRequestGeneration = generation;
+            mFirstPosition = firstPosition;
+            mNames = names;
+        }
+
+        @Override
+        public void run() {
+            String[] codes = new String[mNames.length];
+            for (int i = 0; i < mNames.length; i++) {
+                if (isCancelled(mRequestGeneration)) {
+                    return;
+                }
+                if (mNames[i] != null) {
+                    codes[i] = computeCode(mNames[i]);
+                }
+            }
+
+            final Codes result = new Codes(mFirstPosition, mNames, codes);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled(mRequestGeneration)) {
+                        return;
+                    }
+                    mListener.onCodesLoaded(result);
+                }
+            });
+        }
+    }
+
+    /**
+     * Accounts and their codes as loaded by one refresh.
+     * <p/>
+     * <p>Thread-safety: instances of this class are immutable and are thus thread-safe.
+     */
+    static final class Snapshot {
+        private final boolean mAccountModified;
+        private final String[] mNames;
+        private final boolean[] mHotp;
+        private final String[] mCodes;
+        private final int mFirstLoadedPosition;
+        private final int mLastLoadedPosition;
+
+        private Snapshot(boolean accountModified, String[] names, boolean[] hotp, String[] codes,
+                         int firstLoadedPosition, int lastLoadedPosition) {
+            mAccountModified = accountModified;
+            mNames = names;
+            mHotp = hotp;
+            mCodes = codes;
+            mFirstLoadedPosition = firstLoadedPosition;
+            mLastLoadedPosition = lastLoadedPosition;
+        }
+
+        /**
+         * Whether the accounts were modified, in which case the list must be rebuilt.
+         */
+        boolean isAccountModified() {
+            return mAccountModified;
+        }
+
+        int size() {
+            return mNames.length;
+        }
+
+        String getName(int position) {
+            return mNames[position];
+        }
+
+        boolean isHotp(int position) {
+            return mHotp[position];
+        }
+
+        /**
+         * Whether the code of the account at the position was computed by the refresh (if it is
+         * time-based).
+         */
+        boolean isCodeLoaded(int position) {
+            return (position >= mFirstLoadedPosition) && (position <= mLastLoadedPosition);
+        }
+
+        /**
+         * Gets the current code of the account or {@code null} if it is counter-based, was not
+         * {@link #isCodeLoaded(int) loaded} or could not be computed.
+         */
+        String getCode(int position) {
+            return mCodes[position];
+        }
+    }
+
+    /**
+     * Codes of consecutive accounts as loaded by {@link #loadCodes(int, String[])}.
+     * <p/>
+     * <p>Thread-safety: instances of this class are immutable and are thus thread-safe.
+     */
+    static final class Codes {
+        private final int mFirstPosition;
+        private final String[] mNames;
+        private final String[] mCodes;
+
+        private Codes(int firstPosition, String[] names, String[] codes) {
+            mFirstPosition = firstPosition;
+            mNames = names;
+            mCodes = codes;
+        }
+
+        int getFirstPosition() {
+            return mFirstPosition;
+        }
+
+        int size() {
+            return mNames.length;
+        }
+
+        /**
+         * Gets the name of the account at {@code getFirstPosition() + index} or {@code null} if its
+         * code was not requested.
+         */
+        String getName(int index) {
+            return mNames[index];
+        }
+
+        /**
+         * Gets the code of the account at {@code getFirstPosition() + index} or {@code null} if it
+         * was not requested or could not be computed.
+         */
+        String getCode(int index) {
+            return mCodes[index];
+        }
+    }
+}
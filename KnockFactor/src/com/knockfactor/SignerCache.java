@@ -0,0 +1,136 @@
+package com.knockfactor;
+
+import com.knockfactor.Base32String.DecodingException;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of pre-keyed HMAC signers and passcode generators, keyed by account name.
+ * <p/>
+ * <p>Decoding the secret and scheduling the key dominate the cost of computing a code, so this
+ * cache keeps a {@link HmacSha1Signer}, which holds the precomputed HMAC pad states, for the most
+ * recently used accounts. Entries are dropped in least-recently-used order once the cache is full,
+ * and whenever {@link AccountDb} modifies or removes the account.
+ * <p/>
+ * <p>The decoded key bytes are wiped as soon as the signer has been keyed. Evicted entries wipe
+ * the signer's key-dependent state.
+ * <p/>
+ * <p>Thread-safety: all methods are synchronized on this cache, which also serializes the use of
+ * the cached (not thread-safe) signers.
+ */
+class SignerCache {
+
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    /**
+     * @param maxSize maximum number of accounts for which signers are cached.
+     */
+    SignerCache(final int maxSize) {
+        Preconditions.checkArgument(maxSize > 0);
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxSize) {
+                    eldest.getValue().destroy();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Computes a passcode for the account using its cached signer, creating the signer if
+     * necessary.
+     *
+     * @param account    name of the account.
+     * @param secret     the account's secret key as base32 encoded string.
+     * @param codeLength number of decimal digits in the passcode.
+     * @param state      8-byte integer value representing internal OTP state.
+     * @param challenge  optional challenge bytes or {@code null} for none.
+     * @return the passcode.
+     */
+    synchronized String generateResponseCode(String account, String secret, int codeLength,
+                                             long state, byte[] challenge)
+            throws DecodingException, GeneralSecurityException {
+        PasscodeGenerator generator = getEntry(account, secret).getGenerator(codeLength);
+        return (challenge == null) ?
+                generator.generateResponseCode(state) :
+                generator.generateResponseCode(state, challenge);
+    }
+
+    /**
+     * Drops the signer cached for the account, if any.
+     */
+    synchronized void invalidate(String account) {
+        Entry entry = mEntries.remove(account);
+        if (entry != null) {
+            entry.destroy();
+        }
+    }
+
+    /**
+     * Drops all cached signers.
+     */
+    synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            entry.destroy();
+        }
+        mEntries.clear();
+    }
+
+    private Entry getEntry(String account, String secret)
+            throws DecodingException, GeneralSecurityException {
+        Entry entry = mEntries.get(account);
+        if ((entry != null) && (!entry.mSecret.equals(secret))) {
+            // The secret was changed without going through AccountDb.update.
+            invalidate(account);
+            entry = null;
+        }
+        if (entry == null) {
+            byte[] keyBytes = Base32String.decode(secret);
+            try {
+                entry = new Entry(secret, new HmacSha1Signer(keyBytes));
+            } finally {
+                Arrays.fill(keyBytes, (byte) 0);
+            }
+            mEntries.put(account, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Keyed signer of an account and the passcode generators built on top of it.
+     */
+    private static class Entry {
+        private final String mSecret;
+        private HmacSha1Signer mSigner;
+        private final PasscodeGenerator[] mGenerators =
+                new PasscodeGenerator[PasscodeGenerator.MAX_PASSCODE_LENGTH + 1];
+
+        private Entry(String secret, HmacSha1Signer signer) {
+            mSecret = secret;
+            mSigner = signer;
+        }
+
+        private PasscodeGenerator getGenerator(int codeLength) {
+            PasscodeGenerator generator = mGenerators[codeLength];
+            if (generator == null) {
+                generator = new PasscodeGenerator(mSigner, codeLength);
+                mGenerators[codeLength] = generator;
+            }
+            return generator;
+        }
+
+        private void destroy() {
+            mSigner.destroy();
+            mSigner = null;
+            for (int i = 0; i < mGenerators.length; i++) {
+                mGenerators[i] = null;
+            }
+        }
+    }
+}
@@ -16,13 +16,27 @@
 
 package com.knockfactor;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
  * Clock input for the time-based OTPs (TOTP). The input is based on the current system time
  * and is adjusted by a persistently stored correction value (offset in minutes).
+ * <p/>
+ * <p>The system time is sampled only when the correction is set, when this clock is created and
+ * when the system time or time zone is changed (by the user or by network time sync). In between,
+ * time is derived from the monotonic {@link SystemClock#elapsedRealtime()}, so that reading the
+ * time is cheap and does not jump.
+ * <p/>
+ * <p>Thread-safety: reading the time is lock-free; the correction and its time base are published
+ * together through a single volatile reference.
  *
  * @author klyubin@google.com (Alex Klyubin)
  */
@@ -31,27 +45,62 @@ public class TotpClock {
     // @VisibleForTesting
     static final String PREFERENCE_KEY_OFFSET_MINUTES = "timeCorrectionMinutes";
 
+    /**
+     * Listener notified when the time correction of a {@link TotpClock} changes.
+     */
+    public interface Listener {
+        /**
+         * Invoked, on the thread which set the correction, after the correction has changed.
+         *
+         * @param minutes number of minutes by which this device is behind the correct time.
+         */
+        void onTimeCorrectionChanged(TotpClock clock, int minutes);
+    }
+
+    private final Context mContext;
     private final SharedPreferences mPreferences;
 
-    private final Object mLock = new Object();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
 
     /**
-     * Cached value of time correction (in minutes) or {@code null} if not cached. The value is cached
-     * because it's read very frequently (once every 100ms) and is modified very infrequently.
-     *
-     * @GuardedBy {@link #mLock}
+     * Current time correction and the time base anchored when it was set. Replaced as a whole so that
+     * readers always observe a consistent pair.
+     */
+    private volatile TimeBase mTimeBase;
+
+    /**
+     * Re-anchors the time base when the system time changes, so that the corrected time follows.
      */
-    private Integer mCachedCorrectionMinutes;
+    private final BroadcastReceiver mTimeChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (TotpClock.this) {
+                mTimeBase = new TimeBase(mTimeBase.mCorrectionMinutes);
+            }
+        }
+    };
 
     public TotpClock(Context context) {
+        mContext = context.getApplicationContext();
         mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mTimeBase = new TimeBase(mPreferences.getInt(PREFERENCE_KEY_OFFSET_MINUTES, 0));
+        IntentFilter timeChangedFilter = new IntentFilter(Intent.ACTION_TIME_CHANGED);
+        timeChangedFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        mContext.registerReceiver(mTimeChangedReceiver, timeChangedFilter);
+    }
+
+    /**
+     * Stops following changes of the system time. This clock must not be used afterwards.
+     */
+    public void close() {
+        mContext.unregisterReceiver(mTimeChangedReceiver);
     }
 
     /**
      * Gets the number of milliseconds since epoch.
      */
     public long currentTimeMillis() {
-        return System.currentTimeMillis() + getTimeCorrectionMinutes() * Utilities.MINUTE_IN_MILLIS;
+        return mTimeBase.currentTimeMillis();
     }
 
     /**
@@ -60,24 +109,57 @@ public class TotpClock {
      * @return number of minutes by which this device is behind the correct time.
      */
     public int getTimeCorrectionMinutes() {
-        synchronized (mLock) {
-            if (mCachedCorrectionMinutes == null) {
-                mCachedCorrectionMinutes = mPreferences.getInt(PREFERENCE_KEY_OFFSET_MINUTES, 0);
-            }
-            return mCachedCorrectionMinutes;
-        }
+        return mTimeBase.mCorrectionMinutes;
     }
 
     /**
-     * Sets the currently used time correction value.
+     * Sets the currently used time correction value and re-anchors the time base to the current
+     * system time. Listeners are notified if the value has changed.
      *
      * @param minutes number of minutes by which this device is behind the correct time.
      */
     public void setTimeCorrectionMinutes(int minutes) {
-        synchronized (mLock) {
-            mPreferences.edit().putInt(PREFERENCE_KEY_OFFSET_MINUTES, minutes).commit();
-            // Invalidate the cache to force reading actual settings from time to time
-            mCachedCorrectionMinutes = null;
+        boolean changed;
+        synchronized (this) {
+            // Writers are serialized so that the preferences and the published value agree.
+            changed = (minutes != mTimeBase.mCorrectionMinutes);
+            if (changed) {
+                mPreferences.edit().putInt(PREFERENCE_KEY_OFFSET_MINUTES, minutes).commit();
+            }
+            mTimeBase = new TimeBase(minutes);
+        }
+        if (changed) {
+            for (Listener listener : mListeners) {
+                listener.onTimeCorrectionChanged(this, minutes);
+            }
+        }
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Time correction together with the system time and elapsed realtime sampled when it was set.
+     */
+    private static class TimeBase {
+        private final int mCorrectionMinutes;
+        private final long mCorrectedTimeMillis;
+        private final long mElapsedRealtime;
+
+        private TimeBase(int correctionMinutes) {
+            mCorrectionMinutes = correctionMinutes;
+            mElapsedRealtime = SystemClock.elapsedRealtime();
+            mCorrectedTimeMillis =
+                    System.currentTimeMillis() + correctionMinutes * Utilities.MINUTE_IN_MILLIS;
+        }
+
+        private long currentTimeMillis() {
+            return mCorrectedTimeMillis + (SystemClock.elapsedRealtime() - mElapsedRealtime);
         }
     }
 }
@@ -0,0 +1,138 @@
+package com.knockfactor;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the TOTP codes of the next interval on a background thread shortly before the interval
+ * begins, so that the rollover does not have to wait for HMAC and database work.
+ * <p/>
+ * <p>Precomputation runs only while at least one client (e.g., a visible activity or an open
+ * Bluetooth session) has {@link #acquire() acquired} it, waking once per interval.
+ * <p/>
+ * <p>Thread-safety: thread-safe.
+ */
+public class TotpCodePrecomputer {
+
+    /**
+     * Default time before the interval boundary at which the codes of the next interval are
+     * computed.
+     */
+    public static final long DEFAULT_LEAD_TIME_MILLIS = 2 * Utilities.SECOND_IN_MILLIS;
+
+    private final CachingOtpSource mOtpSource;
+    private final long mLeadTimeMillis;
+
+    /**
+     * @GuardedBy {@code this}
+     */
+    private int mClientCount;
+
+    /**
+     * @GuardedBy {@code this}
+     */
+    private ScheduledExecutorService mExecutor;
+
+    /**
+     * Whether this precomputer was {@link #shutdown() shut down}.
+     *
+     * @GuardedBy {@code this}
+     */
+    private boolean mShutdown;
+
+    /**
+     * Value of the TOTP counter for which the codes are computed next.
+     *
+     * @GuardedBy {@code this}
+     */
+    private long mNextInterval;
+
+    public TotpCodePrecomputer(CachingOtpSource otpSource) {
+        this(otpSource, DEFAULT_LEAD_TIME_MILLIS);
+    }
+
+    /**
+     * @param leadTimeMillis time before the interval boundary at which the codes of the next
+     *                       interval are computed.
+     */
+    public TotpCodePrecomputer(CachingOtpSource otpSource, long leadTimeMillis) {
+        Preconditions.checkArgument(leadTimeMillis >= 0);
+        mOtpSource = otpSource;
+        mLeadTimeMillis = leadTimeMillis;
+    }
+
+    /**
+     * Starts precomputing codes, unless already started by another client. Does nothing once this
+     * precomputer is shut down.
+     */
+    public synchronized void acquire() {
+        if (mShutdown || (mClientCount++ > 0)) {
+            return;
+        }
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mNextInterval = getCurrentInterval() + 1;
+        schedule();
+    }
+
+    /**
+     * Stops precomputing codes once all clients which acquired this precomputer released it.
+     */
+    public synchronized void release() {
+        if (mShutdown) {
+            return;
+        }
+        Preconditions.checkState(mClientCount > 0);
+        if (--mClientCount > 0) {
+            return;
+        }
+        mExecutor.shutdownNow();
+        mExecutor = null;
+    }
+
+    /**
+     * Stops precomputing codes for good, whether or not clients still hold this precomputer. Their
+     * later calls to {@link #acquire()} and {@link #release()} do nothing.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        mClientCount = 0;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private synchronized void schedule() {
+        if (mExecutor == null) {
+            return;
+        }
+        // Skip the intervals which have begun already, e.g., because the time correction changed.
+        mNextInterval = Math.max(mNextInterval, getCurrentInterval() + 1);
+        final ScheduledExecutorService executor = mExecutor;
+        final long interval = mNextInterval;
+        long boundaryMillis = Utilities.secondsToMillis(
+                mOtpSource.getTotpCounter().getValueStartTime(interval));
+        long delayMillis = Math.max(0, boundaryMillis - mLeadTimeMillis
+                - mOtpSource.getTotpClock().currentTimeMillis());
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mOtpSource.precompute(interval);
+                synchronized (TotpCodePrecomputer.this) {
+                    if (mExecutor != executor) {
+                        // Released (and possibly acquired again) in the meantime.
+                        return;
+                    }
+                    mNextInterval = interval + 1;
+                    schedule();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private long getCurrentInterval() {
+        return mOtpSource.getTotpCounter().getValueAtTime(
+                Utilities.millisToSeconds(mOtpSource.getTotpClock().currentTimeMillis()));
+    }
+}
@@ -21,10 +21,21 @@ import android.os.Handler;
 /**
  * Task that periodically notifies its listener about the time remaining until the value of a TOTP
  * counter changes.
+ * <p/>
+ * <p>With a notification period of {@link #NOTIFY_ON_COUNTER_VALUE_CHANGE}, the task wakes up only
+ * once per counter value, at the moment the value changes. The listener is then expected to
+ * animate the countdown itself from the time remaining.
  *
  * @author klyubin@google.com (Alex Klyubin)
  */
 class TotpCountdownTask implements Runnable {
+
+    /**
+     * Notification period which notifies the listener about the time remaining only when the
+     * counter changes its value (and when the task is started).
+     */
+    static final long NOTIFY_ON_COUNTER_VALUE_CHANGE = 0;
+
     private final TotpCounter mCounter;
     private final TotpClock mClock;
     private final long mRemainingTimeNotificationPeriod;
@@ -59,9 +70,12 @@ class TotpCountdownTask implements Runnable {
      * @param clock                           TOTP clock that drives this task.
      * @param remainingTimeNotificationPeriod approximate interval (milliseconds) at which this task
      *                                        notifies its listener about the time remaining until the @{code counter} changes its
-     *                                        value.
+     *                                        value, or {@link #NOTIFY_ON_COUNTER_VALUE_CHANGE}.
      */
     TotpCountdownTask(TotpCounter counter, TotpClock clock, long remainingTimeNotificationPeriod) {
+        if (remainingTimeNotificationPeriod < 0) {
+            throw new IllegalArgumentException("period: " + remainingTimeNotificationPeriod);
+        }
         mCounter = counter;
         mClock = clock;
         mRemainingTimeNotificationPeriod = remainingTimeNotificationPeriod;
@@ -118,9 +132,14 @@ class TotpCountdownTask implements Runnable {
 
     private void scheduleNextInvocation() {
         long now = mClock.currentTimeMillis();
-        long counterValueAge = getCounterValueAge(now);
-        long timeTillNextInvocation =
-                mRemainingTimeNotificationPeriod - (counterValueAge % mRemainingTimeNotificationPeriod);
+        long timeTillNextInvocation;
+        if (mRemainingTimeNotificationPeriod == NOTIFY_ON_COUNTER_VALUE_CHANGE) {
+            timeTillNextInvocation = getTimeTillNextCounterValue(now);
+        } else {
+            long counterValueAge = getCounterValueAge(now);
+            timeTillNextInvocation = mRemainingTimeNotificationPeriod
+                    - (counterValueAge % mRemainingTimeNotificationPeriod);
+        }
         mHandler.postDelayed(this, timeTillNextInvocation);
     }
 
@@ -16,6 +16,7 @@
 
 package com.knockfactor.testability;
 
+import android.bluetooth.BluetoothAdapter;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.preference.PreferenceManager;
@@ -23,10 +24,14 @@ import android.test.RenamingDelegatingContext;
 
 import com.knockfactor.AccountDb;
 import com.knockfactor.AuthenticatorActivity;
+import com.knockfactor.BluetoothSessionManager;
+import com.knockfactor.CachingOtpSource;
 import com.knockfactor.MarketBuildOptionalFeatures;
 import com.knockfactor.OptionalFeatures;
+import com.knockfactor.OtpProvider;
 import com.knockfactor.OtpSource;
 import com.knockfactor.TotpClock;
+import com.knockfactor.TotpCodePrecomputer;
 import com.knockfactor.dataimport.ExportServiceBasedImportController;
 import com.knockfactor.dataimport.ImportController;
 
@@ -62,6 +67,8 @@ public final class DependencyInjector {
     private static HttpClient sHttpClient;
     private static ImportController sImportController;
     private static OptionalFeatures sOptionalFeatures;
+    private static BluetoothSessionManager sBluetoothSessionManager;
+    private static TotpCodePrecomputer sTotpCodePrecomputer;
 
     private enum Mode {
         PRODUCTION,
@@ -110,20 +117,51 @@ public final class DependencyInjector {
      */
     public static synchronized void setOtpProvider(OtpSource otpProvider) {
         sOtpProvider = otpProvider;
+        if (sTotpCodePrecomputer != null) {
+            // Precomputes the codes of the replaced source.
+            sTotpCodePrecomputer.shutdown();
+            sTotpCodePrecomputer = null;
+        }
     }
 
+    /**
+     * Gets the {@link OtpSource} shared by the whole app. Unless injected, TOTP codes of an
+     * {@link OtpProvider} are cached per interval by a {@link CachingOtpSource}.
+     */
     public static synchronized OtpSource getOtpProvider() {
         if (sOtpProvider == null) {
-            sOtpProvider = getOptionalFeatures().createOtpSource(getAccountDb(), getTotpClock());
+            OtpSource otpSource =
+                    getOptionalFeatures().createOtpSource(getAccountDb(), getTotpClock());
+            if (otpSource instanceof OtpProvider) {
+                otpSource = new CachingOtpSource((OtpProvider) otpSource, getAccountDb());
+            }
+            sOtpProvider = otpSource;
         }
         return sOtpProvider;
     }
 
+    /**
+     * Gets the {@link TotpCodePrecomputer} of the {@link OtpSource} returned by
+     * {@link #getOtpProvider()} or {@code null} if that source does not cache codes.
+     */
+    public static synchronized TotpCodePrecomputer getTotpCodePrecomputer() {
+        if (sTotpCodePrecomputer == null) {
+            OtpSource otpSource = getOtpProvider();
+            if (otpSource instanceof CachingOtpSource) {
+                sTotpCodePrecomputer = new TotpCodePrecomputer((CachingOtpSource) otpSource);
+            }
+        }
+        return sTotpCodePrecomputer;
+    }
+
     /**
      * Sets the {@link TotpClock} instance returned by this injector. This will prevent the injector
      * from creating its own instance.
      */
     public static synchronized void setTotpClock(TotpClock totpClock) {
+        if (sTotpClock != null) {
+            sTotpClock.close();
+        }
         sTotpClock = totpClock;
     }
 
@@ -202,6 +240,34 @@ public final class DependencyInjector {
         return sHttpClient;
     }
 
+    /**
+     * Sets the {@link BluetoothSessionManager} instance returned by this injector. This will prevent
+     * the injector from creating its own instance.
+     */
+    public static synchronized void setBluetoothSessionManager(
+            BluetoothSessionManager bluetoothSessionManager) {
+        if (sBluetoothSessionManager != null) {
+            sBluetoothSessionManager.close();
+        }
+        sBluetoothSessionManager = bluetoothSessionManager;
+    }
+
+    /**
+     * Gets the {@link BluetoothSessionManager} or {@code null} if the device does not support
+     * Bluetooth.
+     */
+    public static synchronized BluetoothSessionManager getBluetoothSessionManager() {
+        if (sBluetoothSessionManager == null) {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            if (adapter != null) {
+                sBluetoothSessionManager = new BluetoothSessionManager(
+                        getContext(), adapter, getAccountDb(), getOtpProvider(),
+                        getTotpCodePrecomputer());
+            }
+        }
+        return sBluetoothSessionManager;
+    }
+
     public static synchronized void setOptionalFeatures(OptionalFeatures optionalFeatures) {
         sOptionalFeatures = optionalFeatures;
     }
@@ -264,6 +330,15 @@ public final class DependencyInjector {
         if (sAccountDb != null) {
             sAccountDb.close();
         }
+        if (sBluetoothSessionManager != null) {
+            sBluetoothSessionManager.close();
+        }
+        if (sTotpCodePrecomputer != null) {
+            sTotpCodePrecomputer.shutdown();
+        }
+        if (sTotpClock != null) {
+            sTotpClock.close();
+        }
         if (sHttpClient != null) {
             ClientConnectionManager httpClientConnectionManager = sHttpClient.getConnectionManager();
             if (httpClientConnectionManager != null) {
@@ -281,5 +356,7 @@ public final class DependencyInjector {
         sHttpClient = null;
         sImportController = null;
         sOptionalFeatures = null;
+        sBluetoothSessionManager = null;
+        sTotpCodePrecomputer = null;
     }
 }
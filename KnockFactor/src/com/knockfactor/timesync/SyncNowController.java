@@ -198,10 +198,11 @@ class SyncNowController {
         Log.i(LOG_TAG, "Obtained new time correction: "
                 + timeCorrectionMinutes + " min, old time correction: "
                 + oldTimeCorrectionMinutes + " min");
+        // Set the correction even if unchanged to re-anchor the clock to the current system time.
+        mTotpClock.setTimeCorrectionMinutes(timeCorrectionMinutes);
         if (timeCorrectionMinutes == oldTimeCorrectionMinutes) {
             finish(Result.TIME_ALREADY_CORRECT);
         } else {
-            mTotpClock.setTimeCorrectionMinutes(timeCorrectionMinutes);
             finish(Result.TIME_CORRECTED);
         }
     }
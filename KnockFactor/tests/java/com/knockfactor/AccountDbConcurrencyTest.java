@@ -0,0 +1,85 @@
+package com.knockfactor;
+
+import android.test.AndroidTestCase;
+
+import com.knockfactor.testability.DependencyInjector;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stress test of {@link AccountDb#incrementCounter(String)} invoked concurrently for one account.
+ */
+public class AccountDbConcurrencyTest extends AndroidTestCase {
+
+    private static final String ACCOUNT = "hotp@example.com";
+    private static final String SECRET = "7777777777777777";
+    private static final int THREAD_COUNT = 8;
+    private static final int INCREMENTS_PER_THREAD = 100;
+
+    private AccountDb mAccountDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        DependencyInjector.resetForIntegrationTesting(getContext());
+        mAccountDb = DependencyInjector.getAccountDb();
+        mAccountDb.update(ACCOUNT, SECRET, ACCOUNT, AccountDb.OtpType.HOTP, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DependencyInjector.close();
+        super.tearDown();
+    }
+
+    public void testConcurrentIncrementsAreUniqueAndConsecutive() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+        try {
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                results.add(executor.submit(new Callable<int[]>() {
+                    @Override
+                    public int[] call() throws Exception {
+                        // Maximizes contention by starting all threads at once.
+                        start.await();
+                        int[] counters = new int[INCREMENTS_PER_THREAD];
+                        for (int j = 0; j < INCREMENTS_PER_THREAD; j++) {
+                            counters[j] = mAccountDb.incrementCounter(ACCOUNT);
+                        }
+                        return counters;
+                    }
+                }));
+            }
+            start.countDown();
+
+            Set<Integer> seen = new HashSet<Integer>();
+            for (Future<int[]> result : results) {
+                for (int counter : result.get(30, TimeUnit.SECONDS)) {
+                    assertTrue("Counter returned twice: " + counter, seen.add(counter));
+                }
+            }
+            int total = THREAD_COUNT * INCREMENTS_PER_THREAD;
+            assertEquals(total, seen.size());
+            for (int counter = 1; counter <= total; counter++) {
+                assertTrue("Counter never returned: " + counter, seen.contains(counter));
+            }
+            assertEquals(Integer.valueOf(total), mAccountDb.getCounter(ACCOUNT));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testIncrementOfMissingAccountReturnsNull() {
+        assertNull(mAccountDb.incrementCounter("missing@example.com"));
+    }
+}
@@ -0,0 +1,89 @@
+package com.knockfactor;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link AccountMatcher}.
+ */
+public class AccountMatcherTest extends TestCase {
+
+    public void testMatchesWholeName() {
+        AccountMatcher matcher = new AccountMatcher(new String[]{
+                "Dropbox:jane@example.com", "jane@example.com"});
+        assertEquals(0, matcher.match("dropbox:JANE@example.com"));
+        assertEquals(1, matcher.match(" jane@example.com "));
+    }
+
+    public void testMatchesIssuerPrefix() {
+        // The other account would be picked by the fallback.
+        AccountMatcher matcher = new AccountMatcher(new String[]{
+                "a-dropbox-fan@example.com", "Dropbox:jane@example.com"});
+        assertEquals(1, matcher.match("dropbox"));
+        assertEquals(1, matcher.match("www.dropbox.com"));
+    }
+
+    public void testMatchesParenthesizedIssuer() {
+        AccountMatcher matcher = new AccountMatcher(new String[]{
+                "a-dropbox-fan@example.org", "jane@example.com (Dropbox)"});
+        assertEquals(1, matcher.match("dropbox"));
+        assertEquals(1, matcher.match("www.dropbox.com"));
+        // The issuer is not part of the domain.
+        assertEquals(1, matcher.match("example.com"));
+    }
+
+    public void testMatchesHostPrefix() {
+        AccountMatcher matcher = new AccountMatcher(new String[]{
+                "a@github-fans.org", "github.com/jdoe"});
+        assertEquals(1, matcher.match("github"));
+        assertEquals(1, matcher.match("github.com"));
+        assertEquals(1, matcher.match("gist.github.com"));
+    }
+
+    public void testMatchesLongestDomainSuffix() {
+        AccountMatcher matcher = new AccountMatcher(new String[]{
+                "jane@example.com", "jane@corp.example.com"});
+        assertEquals(0, matcher.match("example.com"));
+        assertEquals(0, matcher.match("www.example.com"));
+        assertEquals(1, matcher.match("corp.example.com"));
+        assertEquals(1, matcher.match("mail.corp.example.com"));
+    }
+
+    public void testRewritesGoogleHostnames() {
+        AccountMatcher matcher = new AccountMatcher(new String[]{
+                "jane@example.com", "jdoe@gmail.com"});
+        assertEquals(1, matcher.match("mail.google"));
+        assertEquals(1, matcher.match("accounts.google.com"));
+        assertEquals(1, matcher.match("youtube.com"));
+    }
+
+    public void testSharedKeyGoesToSmallestName() {
+        String[] names = {"Dropbox:b@example.com", "Dropbox:a@example.com"};
+        assertEquals(1, new AccountMatcher(names).match("dropbox"));
+        assertEquals(1, new AccountMatcher(names).match("example.com"));
+
+        String[] reversed = {names[1], names[0]};
+        assertEquals(0, new AccountMatcher(reversed).match("dropbox"));
+        assertEquals(0, new AccountMatcher(reversed).match("example.com"));
+    }
+
+    public void testFallsBackToSmallestNameContainingQuery() {
+        AccountMatcher matcher = new AccountMatcher(new String[]{
+                "zed-jdoe@example.com", "jdoe@gmail.com", "jane@example.com"});
+        assertEquals(1, matcher.match("jdoe"));
+        assertEquals(1, matcher.match("JDoe"));
+        assertEquals(2, matcher.match("jane"));
+    }
+
+    public void testNoMatch() {
+        AccountMatcher matcher = new AccountMatcher(new String[]{
+                "Dropbox:jane@example.com", null, "github.com/jdoe"});
+        assertEquals(-1, matcher.match("gitlab"));
+        assertEquals(-1, matcher.match(" "));
+        assertEquals(-1, new AccountMatcher(new String[0]).match("github"));
+    }
+
+    public void testGetName() {
+        AccountMatcher matcher = new AccountMatcher(new String[]{"github.com/jdoe"});
+        assertEquals("github.com/jdoe", matcher.getName(matcher.match("github")));
+    }
+}
@@ -0,0 +1,337 @@
+package com.knockfactor;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import com.knockfactor.testability.DependencyInjector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that {@link PinListLoader} delivers the latest results only: superseded and closed
+ * requests stop between accounts and are never delivered.
+ * <p/>
+ * <p>Codes are computed by a source which can hold the loader's background thread in the middle
+ * of a request, so that requests are cancelled at a known point.
+ */
+public class PinListLoaderTest extends AndroidTestCase {
+
+    private static final String SECRET = "7777777777777777";
+    private static final String[] TOTP_ACCOUNTS = {"a@example.com", "b@example.com",
+            "c@example.com"};
+    private static final String HOTP_ACCOUNT = "hotp@example.com";
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    /**
+     * Time to wait for results which must not be delivered.
+     */
+    private static final long NO_RESULT_WAIT_MILLIS = 500;
+
+    private HandlerThread mLooperThread;
+    private Handler mLooperHandler;
+    private BlockingOtpSource mOtpSource;
+    private RecordingListener mListener;
+    private PinListLoader mLoader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        DependencyInjector.resetForIntegrationTesting(getContext());
+        AccountDb accountDb = DependencyInjector.getAccountDb();
+        for (String account : TOTP_ACCOUNTS) {
+            accountDb.update(account, SECRET, account, AccountDb.OtpType.TOTP, 0);
+        }
+        accountDb.update(HOTP_ACCOUNT, SECRET, HOTP_ACCOUNT, AccountDb.OtpType.HOTP, 0);
+
+        mLooperThread = new HandlerThread("PinListLoaderTest");
+        mLooperThread.start();
+        mLooperHandler = new Handler(mLooperThread.getLooper());
+        mOtpSource = new BlockingOtpSource();
+        mListener = new RecordingListener();
+        mLoader = new PinListLoader(accountDb, mOtpSource, mLooperThread.getLooper(), mListener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mOtpSource.unblock();
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                mLoader.close();
+            }
+        });
+        mLooperThread.quit();
+        DependencyInjector.close();
+        super.tearDown();
+    }
+
+    public void testRefreshLoadsAccountsAndTotpCodes() throws Exception {
+        refresh(true, 0, Integer.MAX_VALUE);
+
+        PinListLoader.Snapshot snapshot = mListener.awaitSnapshot();
+        assertTrue(snapshot.isAccountModified());
+        assertEquals(TOTP_ACCOUNTS.length + 1, snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            assertTrue(snapshot.isCodeLoaded(i));
+            if (HOTP_ACCOUNT.equals(snapshot.getName(i))) {
+                assertTrue(snapshot.isHotp(i));
+                assertNull(snapshot.getCode(i));
+            } else {
+                assertFalse(snapshot.isHotp(i));
+                assertEquals(getCode(snapshot.getName(i)), snapshot.getCode(i));
+            }
+        }
+        assertEquals(TOTP_ACCOUNTS.length, mOtpSource.getCallCount());
+    }
+
+    public void testRefreshComputesCodesInRangeOnly() throws Exception {
+        refresh(false, 1, 1);
+
+        PinListLoader.Snapshot snapshot = mListener.awaitSnapshot();
+        assertFalse(snapshot.isAccountModified());
+        for (int i = 0; i < snapshot.size(); i++) {
+            assertEquals(i == 1, snapshot.isCodeLoaded(i));
+            if (i != 1) {
+                assertNull(snapshot.getCode(i));
+            }
+        }
+        assertTrue(mOtpSource.getCallCount() <= 1);
+    }
+
+    public void testLoadCodes() throws Exception {
+        refresh(false, 0, -1);
+        mListener.awaitSnapshot();
+
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                mLoader.loadCodes(5, new String[] {TOTP_ACCOUNTS[0], null, TOTP_ACCOUNTS[2]});
+            }
+        });
+
+        PinListLoader.Codes codes = mListener.awaitCodes();
+        assertEquals(5, codes.getFirstPosition());
+        assertEquals(3, codes.size());
+        assertEquals(getCode(TOTP_ACCOUNTS[0]), codes.getCode(0));
+        assertNull(codes.getName(1));
+        assertNull(codes.getCode(1));
+        assertEquals(getCode(TOTP_ACCOUNTS[2]), codes.getCode(2));
+    }
+
+    public void testRefreshCancelsEarlierRefresh() throws Exception {
+        mOtpSource.block();
+        refresh(true, 0, Integer.MAX_VALUE);
+        mOtpSource.awaitBlocked();
+
+        // Supersedes the blocked refresh, which asked for the list to be rebuilt.
+        refresh(false, 0, Integer.MAX_VALUE);
+        mOtpSource.unblock();
+
+        PinListLoader.Snapshot snapshot = mListener.awaitSnapshot();
+        assertTrue(snapshot.isAccountModified());
+        // The superseded refresh stopped after the code it was computing.
+        assertEquals(1 + TOTP_ACCOUNTS.length, mOtpSource.getCallCount());
+        // Delivered in order on the looper, so the superseded one would have come first.
+        assertEquals(1, mListener.getSnapshotCount());
+    }
+
+    public void testRefreshCancelsCodeLoad() throws Exception {
+        refresh(false, 0, -1);
+        mListener.awaitSnapshot();
+
+        mOtpSource.block();
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                mLoader.loadCodes(0, TOTP_ACCOUNTS.clone());
+            }
+        });
+        mOtpSource.awaitBlocked();
+        refresh(false, 0, -1);
+        mOtpSource.unblock();
+
+        mListener.awaitSnapshot();
+        assertEquals(1, mOtpSource.getCallCount());
+        assertNull(mListener.pollCodes(NO_RESULT_WAIT_MILLIS));
+    }
+
+    public void testCloseCancelsRefresh() throws Exception {
+        mOtpSource.block();
+        refresh(true, 0, Integer.MAX_VALUE);
+        mOtpSource.awaitBlocked();
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                mLoader.close();
+            }
+        });
+        mOtpSource.unblock();
+
+        assertNull(mListener.pollSnapshot(NO_RESULT_WAIT_MILLIS));
+        assertEquals(1, mOtpSource.getCallCount());
+    }
+
+    private void refresh(final boolean accountModified, final int firstPosition,
+                         final int lastPosition) throws InterruptedException {
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                mLoader.refresh(accountModified, firstPosition, lastPosition);
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the loader's looper, as required by {@link PinListLoader}, and waits for it.
+     */
+    private void runOnLooper(final Runnable task) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mLooperHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private static String getCode(String accountName) {
+        return "code:" + accountName;
+    }
+
+    /**
+     * {@link OtpSource} which returns a code derived from the account name, optionally holding the
+     * calling thread until unblocked.
+     */
+    private static class BlockingOtpSource implements OtpSource {
+        private final AtomicInteger mCallCount = new AtomicInteger();
+        private final Semaphore mBlocked = new Semaphore(0);
+        private volatile CountDownLatch mGate = new CountDownLatch(0);
+
+        void block() {
+            mGate = new CountDownLatch(1);
+        }
+
+        void unblock() {
+            mGate.countDown();
+        }
+
+        /**
+         * Waits until a caller is held.
+         */
+        void awaitBlocked() throws InterruptedException {
+            assertTrue(mBlocked.tryAcquire(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+
+        int getCallCount() {
+            return mCallCount.get();
+        }
+
+        @Override
+        public int enumerateAccounts(Collection<String> result) {
+            Collections.addAll(result, TOTP_ACCOUNTS);
+            return TOTP_ACCOUNTS.length;
+        }
+
+        @Override
+        public String getNextCode(String accountName) throws OtpSourceException {
+            mCallCount.incrementAndGet();
+            CountDownLatch gate = mGate;
+            if (gate.getCount() > 0) {
+                mBlocked.release();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    // Closed: the result is dropped anyway.
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return getCode(accountName);
+        }
+
+        @Override
+        public String respondToChallenge(String accountName, String challenge) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public TotpCounter getTotpCounter() {
+            return new TotpCounter(30);
+        }
+
+        @Override
+        public TotpClock getTotpClock() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * {@link PinListLoader.Listener} which queues the delivered results.
+     */
+    private static class RecordingListener implements PinListLoader.Listener {
+        private final List<PinListLoader.Snapshot> mSnapshots =
+                new ArrayList<PinListLoader.Snapshot>();
+        private final List<PinListLoader.Codes> mCodes = new ArrayList<PinListLoader.Codes>();
+        private int mSnapshotCount;
+
+        @Override
+        public synchronized void onPinListLoaded(PinListLoader.Snapshot snapshot) {
+            mSnapshots.add(snapshot);
+            mSnapshotCount++;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onCodesLoaded(PinListLoader.Codes codes) {
+            mCodes.add(codes);
+            notifyAll();
+        }
+
+        synchronized int getSnapshotCount() {
+            return mSnapshotCount;
+        }
+
+        PinListLoader.Snapshot awaitSnapshot() throws InterruptedException {
+            PinListLoader.Snapshot snapshot = pollSnapshot(TIMEOUT_MILLIS);
+            assertNotNull("No account list loaded", snapshot);
+            return snapshot;
+        }
+
+        PinListLoader.Codes awaitCodes() throws InterruptedException {
+            PinListLoader.Codes codes = pollCodes(TIMEOUT_MILLIS);
+            assertNotNull("No codes loaded", codes);
+            return codes;
+        }
+
+        synchronized PinListLoader.Snapshot pollSnapshot(long timeoutMillis)
+                throws InterruptedException {
+            return poll(mSnapshots, timeoutMillis);
+        }
+
+        synchronized PinListLoader.Codes pollCodes(long timeoutMillis)
+                throws InterruptedException {
+            return poll(mCodes, timeoutMillis);
+        }
+
+        private <T> T poll(List<T> results, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (results.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                wait(remaining);
+            }
+            return results.remove(0);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.knockfactor;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.knockfactor.testability.DependencyInjector;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that the TOTP codes precomputed by {@link CachingOtpSource#precompute(long)}, as scheduled
+ * by {@link TotpCodePrecomputer}, are served once their interval begins, and that the precomputer
+ * stops for good when shut down.
+ */
+public class TotpCodePrecomputerTest extends AndroidTestCase {
+
+    private static final String SECRET = "7777777777777777";
+    private static final String[] ACCOUNTS = {"a@example.com", "b@example.com"};
+    private static final String HOTP_ACCOUNT = "hotp@example.com";
+    private static final long INTERVAL = 50000000;
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    /**
+     * Time to wait for precomputations which must not happen.
+     */
+    private static final long NO_PRECOMPUTATION_WAIT_MILLIS = 500;
+
+    private AccountDb mAccountDb;
+    private FakeTotpClock mTotpClock;
+    private OtpProvider mOtpProvider;
+    private RecordingCachingOtpSource mOtpSource;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        DependencyInjector.resetForIntegrationTesting(getContext());
+        mAccountDb = DependencyInjector.getAccountDb();
+        for (String account : ACCOUNTS) {
+            mAccountDb.update(account, SECRET, account, AccountDb.OtpType.TOTP, 0);
+        }
+        mAccountDb.update(HOTP_ACCOUNT, SECRET, HOTP_ACCOUNT, AccountDb.OtpType.HOTP, 0);
+
+        mTotpClock = new FakeTotpClock(getContext());
+        mOtpProvider = new OtpProvider(mAccountDb, mTotpClock);
+        mOtpSource = new RecordingCachingOtpSource(mOtpProvider, mAccountDb);
+        // Ten seconds into the interval.
+        setTime(INTERVAL, 10);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTotpClock.close();
+        DependencyInjector.close();
+        super.tearDown();
+    }
+
+    public void testPrecomputedCodesServedWhenIntervalBegins() throws Exception {
+        assertEquals(mOtpProvider.getTotpCode(ACCOUNTS[0], INTERVAL),
+                mOtpSource.getNextCode(ACCOUNTS[0]));
+        assertEquals(1, mOtpSource.getMissCount());
+
+        mOtpSource.precompute(INTERVAL + 1);
+        // Not served before the interval begins.
+        assertEquals(mOtpProvider.getTotpCode(ACCOUNTS[0], INTERVAL),
+                mOtpSource.getNextCode(ACCOUNTS[0]));
+        assertEquals(0, mOtpSource.getPrecomputedCount());
+
+        setTime(INTERVAL + 1, 0);
+        for (String account : ACCOUNTS) {
+            assertEquals(mOtpProvider.getTotpCode(account, INTERVAL + 1),
+                    mOtpSource.getNextCode(account));
+        }
+        assertEquals(ACCOUNTS.length, mOtpSource.getPrecomputedCount());
+        assertEquals(1, mOtpSource.getEvictionCount());
+        assertEquals(1, mOtpSource.getMissCount());
+        assertEquals(1 + ACCOUNTS.length, mOtpSource.getHitCount());
+    }
+
+    public void testPrecomputeOfBegunIntervalIsIgnored() throws Exception {
+        mOtpSource.getNextCode(ACCOUNTS[0]);
+        mOtpSource.precompute(INTERVAL);
+
+        mOtpSource.getNextCode(ACCOUNTS[1]);
+        assertEquals(0, mOtpSource.getPrecomputedCount());
+        assertEquals(2, mOtpSource.getMissCount());
+    }
+
+    public void testHotpCodesAreNotPrecomputed() throws Exception {
+        mOtpSource.precompute(INTERVAL + 1);
+        setTime(INTERVAL + 1, 0);
+
+        mOtpSource.getNextCode(HOTP_ACCOUNT);
+        assertEquals(1, mOtpSource.getBypassCount());
+        assertEquals(0, mOtpSource.getHitCount());
+        // Advanced once, by the request only.
+        assertEquals(Integer.valueOf(1), mAccountDb.getCounter(HOTP_ACCOUNT));
+    }
+
+    public void testAcquirePrecomputesAheadOfNextInterval() throws Exception {
+        // Twenty seconds before the next interval, within the lead time: computed right away.
+        TotpCodePrecomputer precomputer =
+                new TotpCodePrecomputer(mOtpSource, 30 * Utilities.SECOND_IN_MILLIS);
+        precomputer.acquire();
+        try {
+            assertEquals(INTERVAL + 1, mOtpSource.awaitPrecompute(TIMEOUT_MILLIS));
+        } finally {
+            precomputer.release();
+        }
+
+        setTime(INTERVAL + 1, 0);
+        assertEquals(mOtpProvider.getTotpCode(ACCOUNTS[0], INTERVAL + 1),
+                mOtpSource.getNextCode(ACCOUNTS[0]));
+        assertEquals(ACCOUNTS.length, mOtpSource.getPrecomputedCount());
+    }
+
+    public void testReleaseWithoutAcquireFails() {
+        TotpCodePrecomputer precomputer = new TotpCodePrecomputer(mOtpSource);
+        try {
+            precomputer.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testShutdownStopsPrecomputing() throws Exception {
+        TotpCodePrecomputer precomputer =
+                new TotpCodePrecomputer(mOtpSource, 30 * Utilities.SECOND_IN_MILLIS);
+        precomputer.shutdown();
+
+        precomputer.acquire();
+        assertEquals(-1, mOtpSource.awaitPrecompute(NO_PRECOMPUTATION_WAIT_MILLIS));
+        // Clients still holding the precomputer may release it.
+        precomputer.release();
+        precomputer.release();
+    }
+
+    public void testInjectorShutsDownReplacedPrecomputer() {
+        TotpCodePrecomputer precomputer = DependencyInjector.getTotpCodePrecomputer();
+        assertNotNull(precomputer);
+        precomputer.acquire();
+
+        DependencyInjector.setOtpProvider(mOtpSource);
+        assertNotSame(precomputer, DependencyInjector.getTotpCodePrecomputer());
+        // Shut down: releasing more often than acquired does not fail.
+        precomputer.release();
+        precomputer.release();
+    }
+
+    private void setTime(long interval, long secondsIntoInterval) {
+        mTotpClock.mTimeMillis = Utilities.secondsToMillis(
+                mOtpProvider.getTotpCounter().getValueStartTime(interval) + secondsIntoInterval);
+    }
+
+    /**
+     * {@link TotpClock} whose time is set by the test.
+     */
+    private static class FakeTotpClock extends TotpClock {
+        private volatile long mTimeMillis;
+
+        FakeTotpClock(Context context) {
+            super(context);
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return mTimeMillis;
+        }
+    }
+
+    /**
+     * {@link CachingOtpSource} which records the interval of the latest precomputation.
+     */
+    private static class RecordingCachingOtpSource extends CachingOtpSource {
+        private volatile CountDownLatch mPrecomputed = new CountDownLatch(1);
+        private volatile long mPrecomputedInterval = -1;
+
+        RecordingCachingOtpSource(OtpProvider delegate, AccountDb accountDb) {
+            super(delegate, accountDb);
+        }
+
+        @Override
+        public void precompute(long interval) {
+            super.precompute(interval);
+            mPrecomputedInterval = interval;
+            mPrecomputed.countDown();
+        }
+
+        /**
+         * Waits for a precomputation by the {@link TotpCodePrecomputer}.
+         *
+         * @return interval precomputed or {@code -1} if none before the timeout.
+         */
+        long awaitPrecompute(long timeoutMillis) throws InterruptedException {
+            if (!mPrecomputed.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return -1;
+            }
+            return mPrecomputedInterval;
+        }
+    }
+}